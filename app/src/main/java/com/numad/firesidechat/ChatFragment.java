@@ -1,44 +1,73 @@
 package com.numad.firesidechat;
 
+import android.app.AlertDialog;
+import android.content.Context;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Toast;
 
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
+import androidx.lifecycle.ViewModelProvider;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
-import com.google.android.gms.tasks.Task;
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.DatabaseReference;
-import com.google.firebase.database.GenericTypeIndicator;
-import com.google.firebase.database.ValueEventListener;
 import com.numad.firesidechat.databinding.FragmentChatBinding;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
  * This fragment is used to display the chat between two users.
  * It contains a RecyclerView that displays the messages between the two users.
  * It handles fetching the chat data between 2 users and displaying it in the RecyclerView.
  * It also handles sending messages between the two users.
+ * Tapping the user icon lets them export the whole chat to a file, or import one into it.
  */
 public class ChatFragment extends Fragment implements MessageAdapter.OnMessageLongClickListener {
     private static final String CHATTER_NAME = "chatterName";
     private static final String RECIPIENT_NAME = "recipientName";
+    // Whether deleted messages are kept as tombstones, so listeners get a small change instead of a
+    // removal. It is on unless the preference says otherwise.
+    public static final String TOMBSTONE_DELETES_PREF_NAME = "tombstone_deletes";
+    private static final String ARCHIVE_MIME_TYPE = "application/octet-stream";
+    // Chat archives are read and written here, one at a time
+    private static final Executor archiveExecutor = Executors.newSingleThreadExecutor();
 
     private FragmentChatBinding binding;
     private String username;
     private String recipientName;
     private MessageAdapter messageAdapter;
+    private LinearLayoutManager layoutManager;
+    // Bursts of updates are shown at most once per frame
+    private FrameCoalescer<List<Message>> messageCoalescer;
+    // Set when the user sends a message, so the chat scrolls down to it wherever they were
+    private boolean scrollToBottomOnNextUpdate;
+    private ChatViewModel viewModel;
+    private Outbox outbox;
+    private final Outbox.OnPendingChangedListener pendingChangedListener =
+            pendingIds -> messageAdapter.setPendingIds(pendingIds);
+    private final Outbox.OnSendFailedListener sendFailedListener = this::onSendFailed;
 
-    private FirebaseDatabaseManager databaseManager;
+    private ChatRepository repository;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ActivityResultLauncher<String> exportLauncher = registerForActivityResult(
+            new ActivityResultContracts.CreateDocument(ARCHIVE_MIME_TYPE), this::exportChat);
+    private final ActivityResultLauncher<String[]> importLauncher = registerForActivityResult(
+            new ActivityResultContracts.OpenDocument(), this::importChat);
 
     public ChatFragment() {
         // Required empty public constructor
@@ -85,157 +114,243 @@ public class ChatFragment extends Fragment implements MessageAdapter.OnMessageLo
         initListeners();
     }
 
+    @Override
+    public void onStart() {
+        super.onStart();
+        // Updating the conversation summary to reflect that the new messages have been read
+        repository.markRead(username, recipientName);
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        messageCoalescer.cancel();
+        outbox.removeOnPendingChangedListener(pendingChangedListener);
+        outbox.removeOnSendFailedListener(sendFailedListener);
+        binding = null;
+    }
+
     /**
      * This function is responsible for initializing the UI.
-     * It also gets a reference to the database.
+     * It also gets the repository the chat is written to and the ViewModel holding its messages.
      * */
     private void init() {
         binding.recipientName.setText(recipientName);
 
-        RecyclerView.LayoutManager layoutManager = new LinearLayoutManager(getContext());
+        layoutManager = new LinearLayoutManager(getContext());
+        // The latest messages sit at the bottom, older pages are added above them
+        layoutManager.setStackFromEnd(true);
         binding.recyclerView.setLayoutManager(layoutManager);
         messageAdapter = new MessageAdapter(username, this);
         binding.recyclerView.setAdapter(messageAdapter);
+        messageCoalescer = new FrameCoalescer<>(this::showMessages);
+        binding.recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                viewModel.onScrolled(layoutManager.findFirstVisibleItemPosition(),
+                        layoutManager.findLastVisibleItemPosition());
+            }
+        });
 
-        databaseManager = FirebaseDatabaseManager.getInstance();
+        repository = ChatRepositories.getInstance();
+        viewModel = new ViewModelProvider(this).get(ChatViewModel.class);
+        outbox = Outbox.getInstance(requireContext());
+        outbox.addOnPendingChangedListener(pendingChangedListener);
+        outbox.addOnSendFailedListener(sendFailedListener);
+    }
+
+    /**
+     * This function is called when Firebase refused messages in the {@link Outbox} for good. The
+     * ones sent in this chat are taken out of it, and the user is told they were not sent.
+     */
+    private void onSendFailed(List<OutboxEntry> entries) {
+        boolean inThisChat = false;
+        for (OutboxEntry entry : entries) {
+            if (recipientName.equals(entry.getRecipient())) {
+                viewModel.removeMessage(entry.getMessage().getId());
+                inThisChat = true;
+            }
+        }
+        if (inThisChat) {
+            Toast.makeText(getContext(), getString(R.string.message_not_sent), Toast.LENGTH_SHORT).show();
+        }
     }
 
     /**
      * This function is responsible for fetching the messages between 2 users.
-     * Since the messages are tracked for both users, fetching the list from one user is enough.
-     * While we track the timestamp of the message, since the message is tracked for both users,
-     * Firebase handles ordering the messages.
+     * Both users share a single conversation node, so there is only one list of messages to fetch.
+     * <br><br>
+     * Only the latest page of messages is shown when the chat opens, read from the device if we
+     * have it so that it renders without waiting on the network. Older pages are fetched by
+     * the {@link ChatHistoryPager} as the user scrolls up. New messages come in one child at a time,
+     * and are shown at most once per frame, see {@link #showMessages}.
+     * <br><br>
+     * Messages the user sent that are still waiting in the {@link Outbox} are shown as pending.
+     * <br><br>
+     * The messages are held by the {@link ChatViewModel}, so after a rotation the chat renders the
+     * ones it already has straight away. They are only listened to while the chat is started, so a
+     * chat in the background or on the back stack does not keep listening.
      * */
     private void fetchMessages() {
-        DatabaseReference dbRef = databaseManager.getDatabaseReference().child(FirebaseDatabaseManager.MESSAGE_HISTORY_TAG);
-
-        // Adding a Value Listener to the chat object to keep updating the latest messages
-        dbRef.child(username).child(recipientName).child(FirebaseDatabaseManager.MESSAGES_TAG).addValueEventListener(new ValueEventListener() {
-            @Override
-            public void onDataChange(@NonNull DataSnapshot snapshot) {
-                GenericTypeIndicator<List<Message>> t = new GenericTypeIndicator<>() {
-                };
-                List<Message> messages = snapshot.getValue(t);
-                messageAdapter.setMessages(messages);
+        viewModel.start(username, recipientName);
+        viewModel.getMessages().observe(getViewLifecycleOwner(), messageCoalescer::submit);
+        viewModel.getError().observe(getViewLifecycleOwner(), error -> {
+            if (error) {
+                Toast.makeText(getContext(), getString(R.string.something_went_wrong), Toast.LENGTH_SHORT).show();
+                viewModel.onErrorShown();
             }
+        });
+    }
 
-            @Override
-            public void onCancelled(@NonNull DatabaseError error) {
-                Log.e("ChatFragment", "Error fetching messages: " + error.getMessage());
-                Toast.makeText(getContext(), getString(R.string.something_went_wrong), Toast.LENGTH_SHORT).show();
+    /**
+     * This function shows @param messages, the latest list of the frame, as one batched update.
+     * The adapter works out what changed on a background thread. If the user was at the bottom of
+     * the chat, or has just sent a message, we scroll down to the newest message once it is shown;
+     * otherwise they stay where they are reading.
+     * */
+    private void showMessages(List<Message> messages) {
+        boolean scrollToBottom = scrollToBottomOnNextUpdate || isAtBottom();
+        scrollToBottomOnNextUpdate = false;
+        messageAdapter.setMessages(messages, () -> {
+            if (scrollToBottom && binding != null && messageAdapter.getItemCount() > 0) {
+                binding.recyclerView.scrollToPosition(messageAdapter.getItemCount() - 1);
             }
         });
+    }
 
-        // Updating the notification tracker to reflect that a new message has been read
-        dbRef.child(username).child(recipientName)
-                .get().addOnCompleteListener(task -> {
-                    if (task.isSuccessful()) {
-                        DataSnapshot messageHistorySnapshot = task.getResult();
-                        if (messageHistorySnapshot.exists()) {
-                            GenericTypeIndicator<MessageHistoryObject> t = new GenericTypeIndicator<>() {
-                            };
-                            MessageHistoryObject messageHistoryObject = messageHistorySnapshot.getValue(t);
-                            assert messageHistoryObject != null;
-                            messageHistoryObject.markNotificationAsRead();
-                            dbRef.child(username).child(recipientName).setValue(messageHistoryObject);
-                        }
-                    } else {
-                        Log.e("ChatFragment", "Error getting notification tracker: " + task.getException());
-                        Toast.makeText(getContext(), getString(R.string.something_went_wrong), Toast.LENGTH_SHORT).show();
-                    }
-                });
+    private boolean isAtBottom() {
+        int lastVisible = layoutManager.findLastVisibleItemPosition();
+        return lastVisible == RecyclerView.NO_POSITION || lastVisible >= messageAdapter.getItemCount() - 1;
     }
 
     /**
-     * This function sets up the listeners for the send button and back button.
+     * This function sets up the listeners for the send button, the back button and the user icon.
      * */
     private void initListeners() {
         binding.sendBtn.setOnClickListener(v -> {
             String messageText = binding.messageInput.getText().toString();
-            Message message = new Message(username, messageText, System.currentTimeMillis());
-            sendMessage(message, username, recipientName, false);
-            sendMessage(message, recipientName, username, true);
+            String messageId = repository.newMessageId(username, recipientName);
+            Message message = new Message(messageId, username, messageText, System.currentTimeMillis());
+            sendMessage(message);
             binding.messageInput.setText("");
         });
 
         binding.back.setOnClickListener(v -> requireActivity().onBackPressed());
+        binding.user.setOnClickListener(v -> showArchiveDialog());
     }
 
     /**
-     * This function is responsible for sending a message between 2 users @param name1 and @param name2.
-     * Since the database is designed such that the same message is tracked in the message list
-     * of both users, it is important to add the message to both users.
-     * <br><br>If @param markNotification is true, it will mark the notification tracker as read.
-     * If user 1 sends a message to user 2, this function will modify the notificationTracker object
-     * of user 2 to reflect that a new message has been sent.
+     * This function asks the user whether they want to export the chat to a file, or import a file
+     * into it, and then lets them pick that file.
      * */
-    private void sendMessage(Message message, String name1, String name2, boolean markNotification) {
-        DatabaseReference dbRef = databaseManager.getDatabaseReference().child(FirebaseDatabaseManager.MESSAGE_HISTORY_TAG);
+    private void showArchiveDialog() {
+        String[] options = {getString(R.string.export_chat), getString(R.string.import_chat)};
+        new AlertDialog.Builder(requireContext())
+                .setTitle(recipientName)
+                .setItems(options, (dialog, which) -> {
+                    if (which == 0) {
+                        exportLauncher.launch(getString(R.string.chat_archive_file_name, recipientName));
+                    } else {
+                        importLauncher.launch(new String[]{ARCHIVE_MIME_TYPE});
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * This function writes the whole chat to the file at @param uri, a page at a time, so even a
+     * very long chat is never held in memory at once. See {@link ChatArchive}.
+     * */
+    private void exportChat(@Nullable Uri uri) {
+        if (uri == null) {
+            return;
+        }
+        Context context = requireContext().getApplicationContext();
+        OutputStream out;
+        try {
+            out = context.getContentResolver().openOutputStream(uri);
+            if (out == null) {
+                throw new IOException("Could not open " + uri);
+            }
+        } catch (IOException e) {
+            showArchiveResult(context, R.plurals.chat_exported, null, e);
+            return;
+        }
+        ChatArchive.export(repository, username, recipientName, out, archiveExecutor,
+                (count, error) -> showArchiveResult(context, R.plurals.chat_exported, count, error));
+    }
 
-        dbRef.child(name1).child(name2).get().addOnCompleteListener(task -> {
-            if (task.isSuccessful()) {
-                MessageHistoryObject messageHistoryObject = getMessageHistoryObject(task);
+    /**
+     * This function writes the messages in the file at @param uri into the chat, a batch at a time,
+     * once the whole file has been checked through a copy in the cache directory. Messages older
+     * than the ones on screen show up once the chat is opened again.
+     * */
+    private void importChat(@Nullable Uri uri) {
+        if (uri == null) {
+            return;
+        }
+        Context context = requireContext().getApplicationContext();
+        InputStream in;
+        try {
+            in = context.getContentResolver().openInputStream(uri);
+            if (in == null) {
+                throw new IOException("Could not open " + uri);
+            }
+        } catch (IOException e) {
+            showArchiveResult(context, R.plurals.chat_imported, null, e);
+            return;
+        }
+        ChatArchive.importInto(repository, username, recipientName, in, context.getCacheDir(), archiveExecutor,
+                (count, error) -> showArchiveResult(context, R.plurals.chat_imported, count, error));
+    }
 
-                messageHistoryObject.addMessage(message);
-                if (markNotification) {
-                    messageHistoryObject.incrementNotificationCount();
-                    messageHistoryObject.resetNotificationReadStatus();
-                }
-                dbRef.child(name1).child(name2).setValue(messageHistoryObject);
-            } else {
-                Log.e("ChatFragment", "Error getting messages: " + task.getException());
-                Toast.makeText(getContext(), getString(R.string.something_went_wrong), Toast.LENGTH_SHORT).show();
+    /**
+     * This is a helper function. It tells the user how many messages were exported or imported,
+     * with the plurals @param messageId, or that something went wrong. It can be called from any
+     * thread.
+     * */
+    private void showArchiveResult(Context context, int messageId, @Nullable Integer count, @Nullable Exception error) {
+        mainHandler.post(() -> {
+            if (error != null || count == null) {
+                Log.e("ChatFragment", "Error with the chat archive: " + (error == null ? null : error.getMessage()));
+                Toast.makeText(context, context.getString(R.string.something_went_wrong), Toast.LENGTH_SHORT).show();
+                return;
             }
+            Toast.makeText(context, context.getResources().getQuantityString(messageId, count, count),
+                    Toast.LENGTH_SHORT).show();
         });
     }
 
     /**
-     * This is a helper function. It is used to get the message history object from the database for
-     * any given user. If the message history object does not exist, it is created.
-     * This object is passed back to the {@link #sendMessage} function.
+     * This function is responsible for sending a message between the user and the recipient.
+     * <br><br>The message is shown as pending right away, and handed to the {@link Outbox}, which
+     * stores it on the device and sends it as soon as it can, retrying until it gets through.
+     * <br><br>The message is appended to the conversation under its ID, a new push key, rather than
+     * rewriting the whole chat, so sending costs the same no matter how long the chat is, and two
+     * users sending at the same time never overwrite each other.
      * */
-    @NonNull
-    private static MessageHistoryObject getMessageHistoryObject(Task<DataSnapshot> task) {
-        DataSnapshot dataSnapshot = task.getResult();
-        MessageHistoryObject messageHistoryObject;
-        if (dataSnapshot.exists()) {
-            GenericTypeIndicator<MessageHistoryObject> t = new GenericTypeIndicator<>() {
-            };
-            messageHistoryObject = dataSnapshot.getValue(t);
-            assert messageHistoryObject != null;
-        } else {
-            // Create a new chat object if it doesn't exist
-            messageHistoryObject = new MessageHistoryObject();
-        }
-        return messageHistoryObject;
+    private void sendMessage(Message message) {
+        scrollToBottomOnNextUpdate = true;
+        viewModel.addLocalMessage(message);
+        outbox.send(recipientName, message);
     }
 
     /**
-     * This function is responsible for deleting a message between 2 users @param name1 and @param name2.
-     * Since our database tracks the same message in the list for both users, it is important to
-     * remove the message from both users.
+     * This function is responsible for deleting a message between the user and the recipient.
      * <br><br>
-     * Since the same message object is being passed around, a simple remove operation will work.
+     * The message is found by its ID, so only that one message is touched. It is removed, or turned
+     * into a tombstone when {@link #TOMBSTONE_DELETES_PREF_NAME} is set, and both conversation summaries are
+     * updated, in a single atomic update.
+     * If the message was waiting to be read by the recipient, it stops counting as unread in that same update.
      * */
-    private void deleteMessage(Message message, String name1, String name2) {
-        DatabaseReference dbRef = databaseManager.getDatabaseReference().child(FirebaseDatabaseManager.MESSAGE_HISTORY_TAG);
-
-        dbRef.child(name1).child(name2).get().addOnCompleteListener(task -> {
-            if (task.isSuccessful()) {
-                DataSnapshot dataSnapshot = task.getResult();
-                if (dataSnapshot.exists()) {
-                    GenericTypeIndicator<MessageHistoryObject> t = new GenericTypeIndicator<>() {
-                    };
-                    MessageHistoryObject messageHistoryObject = dataSnapshot.getValue(t);
-                    assert messageHistoryObject != null;
-                    messageHistoryObject.findAndRemoveMessage(message);
-                    dbRef.child(name1).child(name2).setValue(messageHistoryObject);
-                } else {
-                    Log.e("ChatFragment", "Error getting messages: " + task.getException());
-                    Toast.makeText(getContext(), getString(R.string.something_went_wrong), Toast.LENGTH_SHORT).show();
-                }
-            } else {
-                Log.e("ChatFragment", "Error getting messages: " + task.getException());
+    private void deleteMessage(Message message) {
+        Message newLatest = viewModel.latestMessageExcept(message.getId());
+        viewModel.removeMessage(message.getId());
+        boolean tombstone = requireContext().getSharedPreferences(LoginFragment.SHARED_PREFS_NAME, Context.MODE_PRIVATE)
+                .getBoolean(TOMBSTONE_DELETES_PREF_NAME, true);
+        repository.deleteMessage(username, recipientName, message, newLatest, tombstone, (result, error) -> {
+            if (error != null) {
+                Log.e("ChatFragment", "Error deleting message: " + error.getMessage());
                 Toast.makeText(getContext(), getString(R.string.something_went_wrong), Toast.LENGTH_SHORT).show();
             }
         });
@@ -256,8 +371,11 @@ public class ChatFragment extends Fragment implements MessageAdapter.OnMessageLo
      * */
     @Override
     public void onMessageLongPress(Message message) {
-        deleteMessage(message, username, recipientName);
-        deleteMessage(message, recipientName, username);
+        // A message still in the outbox has nothing to delete yet
+        if (outbox.getPendingIds().contains(message.getId())) {
+            return;
+        }
+        deleteMessage(message);
         Toast.makeText(getContext(), getString(R.string.message_deleted), Toast.LENGTH_SHORT).show();
     }
 }
@@ -0,0 +1,370 @@
+package com.numad.firesidechat;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * This class loads the messages of a chat one page at a time.
+ * <br><br>
+ * When a chat is opened, the latest {@link #PAGE_SIZE} messages we have in the {@link LocalChatStore}
+ * are shown straight away, while the latest page is fetched from the {@link ChatRepository}. That
+ * page then replaces them, on screen and on the device, so messages deleted elsewhere in the
+ * meantime are dropped and no more than a page is downloaded however long we were away.
+ * From the oldest message of that page onwards we keep a live subscription, so new, edited and deleted messages
+ * keep coming in, through the {@link SubscriptionRegistry}. Everything that comes in is written
+ * back to the {@link LocalChatStore}.
+ * Older messages are fetched a page at a time with {@link #loadOlderPage()} as the user scrolls up.
+ * <br><br>
+ * At most {@code maxResidentMessages} messages are held, however long the chat is. Older pages
+ * that end up far above the part of the chat the user is looking at are released again, and so are
+ * pages far below it once the limit is reached, leaving a gap before the live messages. The live
+ * messages themselves are kept to {@link #MAX_LIVE_MESSAGES}: the ones before that become an older
+ * page, and the subscription starts again from the oldest message left. Which pages are held is up
+ * to the {@link MessageWindow}, this class only reads and writes them.
+ * <br><br>
+ * Every message we have held since the chat was opened is also on the device, so a released page
+ * is read back from the {@link LocalChatStore} when the user scrolls back to it. Only pages older
+ * than any we have held are fetched from the {@link ChatRepository}.
+ * <br><br>
+ * The subscription can be paused while the chat is not shown and resumed later, keeping every
+ * message we hold. Resuming listens from the same message as before, so only what changed in the
+ * meantime comes in again as a change.
+ */
+public class ChatHistoryPager {
+    public static final int PAGE_SIZE = 50;
+    // How close to the top of the list the user can get before we fetch the next older page
+    public static final int PREFETCH_DISTANCE = 10;
+    // How many messages are held at most, unless the chat is opened with another limit
+    public static final int DEFAULT_MAX_RESIDENT_MESSAGES = PAGE_SIZE * 6;
+    // How many live messages are held before the older ones among them become a page
+    public static final int MAX_LIVE_MESSAGES = PAGE_SIZE * 2;
+
+    private final ChatRepository repository;
+    private final SubscriptionRegistry registry;
+    private final String name1;
+    private final String name2;
+    private final LocalChatStore localStore;
+    private final String conversationId;
+    private final Listener listener;
+
+    private final MessageWindow window;
+    // Messages sent on this device that Firebase has not confirmed yet, always shown last
+    private final LinkedHashMap<String, Message> localMessages = new LinkedHashMap<>();
+
+    private ChatRepository.Subscription liveSubscription;
+    private boolean live;
+    private boolean paused;
+
+    private boolean loading;
+    private boolean loadingNewer;
+    private boolean stopped;
+
+    public ChatHistoryPager(ChatRepository repository, SubscriptionRegistry registry,
+                            String name1, String name2, LocalChatStore localStore,
+                            int maxResidentMessages, Listener listener) {
+        this.repository = repository;
+        this.registry = registry;
+        this.name1 = name1;
+        this.name2 = name2;
+        this.localStore = localStore;
+        this.conversationId = ConversationIds.conversationId(name1, name2);
+        this.window = new MessageWindow(PAGE_SIZE, maxResidentMessages, MAX_LIVE_MESSAGES);
+        this.listener = listener;
+    }
+
+    /**
+     * This function shows the latest page of messages we have on the device straight away, then
+     * fetches the latest page from the repository in their place, and keeps listening for changes
+     * from the oldest message of that page onwards.
+     */
+    public void start() {
+        loading = true;
+        localStore.loadLatestMessages(conversationId, PAGE_SIZE, storedMessages -> {
+            if (stopped) {
+                return;
+            }
+            if (!storedMessages.isEmpty()) {
+                window.showStored(storedMessages);
+                publish();
+            }
+            fetchLatestPage();
+        });
+    }
+
+    /**
+     * This is a helper function. It fetches the latest page of messages from the repository, puts
+     * it in place of whatever we showed from the device, and starts listening from the oldest
+     * message of the page onwards.
+     * <br><br>
+     * If the fetch fails while messages from the device are shown, we keep them and listen from the
+     * oldest of them, as Firebase sends what it has once it is connected again.
+     */
+    private void fetchLatestPage() {
+        repository.loadLatestMessages(name1, name2, PAGE_SIZE, (page, error) -> {
+            loading = false;
+            if (stopped) {
+                return;
+            }
+            if (error != null) {
+                Log.e("ChatHistoryPager", "Error fetching latest messages: " + error);
+                if (!window.hasLiveMessages()) {
+                    listener.onError();
+                } else {
+                    window.resetCursor();
+                    subscribe(window.getCursor());
+                }
+                return;
+            }
+
+            List<Message> kept = window.setLatestPage(page);
+            // Anything stored from the oldest message of the page onwards that is not in it was deleted
+            localStore.replaceMessagesAsync(conversationId, page.isEmpty() ? null : page.get(0), null, kept);
+            publish();
+
+            // The subscription, and so the cursor, start at the oldest message of the page, deleted
+            // or not, so a page of nothing but deleted messages still leads to the ones before it
+            subscribe(page.isEmpty() ? null : page.get(0));
+        });
+    }
+
+    /**
+     * This function cancels the live subscription for good. It should be called once the chat is
+     * closed.
+     */
+    public void stop() {
+        stopped = true;
+        pause();
+    }
+
+    /**
+     * This function cancels the live subscription until {@link #resume()} is called, keeping every
+     * message we hold. It should be called while the chat is not shown.
+     */
+    public void pause() {
+        paused = true;
+        if (liveSubscription != null) {
+            liveSubscription.cancel();
+            liveSubscription = null;
+        }
+    }
+
+    /**
+     * This function opens the live subscription again after {@link #pause()}, from where it started.
+     */
+    public void resume() {
+        paused = false;
+        if (live && liveSubscription == null && !stopped) {
+            openSubscription();
+        }
+    }
+
+    /**
+     * This function is to be called whenever the chat is scrolled, with the first and last rows
+     * the user can see.
+     * It fetches the next older page when the user gets close to the top, and reads back what was
+     * released below when they get close to the gap. Pages well out of view are released.
+     */
+    public void onScrolled(int firstVisiblePosition, int lastVisiblePosition) {
+        if (firstVisiblePosition == -1) {
+            return;
+        }
+        if (firstVisiblePosition <= PREFETCH_DISTANCE) {
+            loadOlderPage();
+        } else if (window.releasePagesAbove(firstVisiblePosition)) {
+            publish();
+        }
+        if (window.isNearGap(firstVisiblePosition, lastVisiblePosition, PREFETCH_DISTANCE)) {
+            loadNewerPage();
+        }
+        if (window.releasePagesBelow(lastVisiblePosition)) {
+            publish();
+        }
+    }
+
+    /**
+     * This function reads the page of messages right before the oldest message we have. If we held
+     * those messages earlier, they are read back from the device, and otherwise fetched.
+     */
+    public void loadOlderPage() {
+        Message before = window.nextOlderPageBefore();
+        if (loading || before == null) {
+            return;
+        }
+        loading = true;
+        if (!window.isStoredBefore(before)) {
+            fetchOlderPage(before);
+            return;
+        }
+        localStore.loadMessagesBefore(conversationId, before, PAGE_SIZE, storedMessages -> {
+            if (stopped) {
+                loading = false;
+                return;
+            }
+            if (!window.addStoredOlderPage(storedMessages)) {
+                fetchOlderPage(before);
+                return;
+            }
+            loading = false;
+            publish();
+        });
+    }
+
+    /**
+     * This is a helper function. It fetches the page of messages right before @param before from
+     * the repository.
+     */
+    private void fetchOlderPage(Message before) {
+        repository.loadMessagesBefore(name1, name2, before, PAGE_SIZE, (olderMessages, error) -> {
+            loading = false;
+            if (stopped) {
+                return;
+            }
+            if (error != null) {
+                Log.e("ChatHistoryPager", "Error fetching older messages: " + error);
+                listener.onError();
+                return;
+            }
+
+            List<Message> page = window.addFetchedOlderPage(olderMessages);
+            boolean reachedStart = window.hasReachedStart();
+            // The stored messages in the range of the page are replaced, dropping the ones deleted elsewhere
+            localStore.replaceMessagesAsync(conversationId, reachedStart || olderMessages.isEmpty() ? null : olderMessages.get(0),
+                    before, page);
+            if (!page.isEmpty()) {
+                publish();
+            } else if (!reachedStart) {
+                // The whole page was deleted messages, carry on from the oldest of them
+                loadOlderPage();
+            }
+        });
+    }
+
+    /**
+     * This is a helper function. It reads the page right after the gap back from the device, where
+     * everything we released is kept, and closes the gap once it reaches the live messages.
+     */
+    private void loadNewerPage() {
+        Message after = window.getGapAfter();
+        if (loadingNewer || after == null) {
+            return;
+        }
+        loadingNewer = true;
+        localStore.loadMessagesAfter(conversationId, after, PAGE_SIZE, storedMessages -> {
+            loadingNewer = false;
+            // Nothing changes if the gap has been closed or moved in the meantime
+            if (!stopped && window.addNewerPage(after, storedMessages)) {
+                publish();
+            }
+        });
+    }
+
+    /**
+     * This function shows @param messages, which have been sent on this device but are still in the
+     * {@link Outbox}, at the end of the chat. Once Firebase has one of them, the live listener
+     * replaces it with the stored copy under the same ID.
+     */
+    public void addLocalMessages(List<Message> messages) {
+        if (stopped || messages.isEmpty()) {
+            return;
+        }
+        for (Message message : messages) {
+            if (!window.containsLive(message.getId())) {
+                localMessages.put(message.getId(), message);
+            }
+        }
+        publish();
+    }
+
+    /**
+     * This function returns the newest message we hold other than the one with the ID @param id,
+     * or null if there is none.
+     */
+    @Nullable
+    public Message latestMessageExcept(String id) {
+        return window.latestMessageExcept(id);
+    }
+
+    /**
+     * Older pages are not listened to, so when a message is deleted from one of them we drop it here.
+     * Messages in the latest page are removed by the live listener. Removing a message is a single
+     * lookup by its ID in each page. A message that was never sent is dropped from the pending ones.
+     */
+    public void removeMessage(String id) {
+        localStore.removeMessageAsync(id);
+        if (localMessages.remove(id) != null) {
+            publish();
+            return;
+        }
+        if (window.removeOlder(id)) {
+            publish();
+        }
+    }
+
+    /**
+     * This is a helper function. It subscribes to every message from @param from onwards, or to the
+     * whole chat when it is null, unless we are paused.
+     */
+    private void subscribe(@Nullable Message from) {
+        window.setLiveFrom(from);
+        live = true;
+        if (!paused) {
+            openSubscription();
+        }
+    }
+
+    private void openSubscription() {
+        liveSubscription = registry.observeMessages(name1, name2, window.getLiveFrom(), new ChatRepository.MessageListener() {
+            @Override
+            public void onMessageChanged(Message message) {
+                if (message.getDeleted()) {
+                    // The message has been turned into a tombstone
+                    onMessageRemoved(message.getId());
+                    return;
+                }
+                localStore.putMessageAsync(conversationId, message);
+                localMessages.remove(message.getId());
+                if (window.putLive(message) && liveSubscription != null) {
+                    // The oldest live messages became a page, so what the subscription holds stays bounded
+                    liveSubscription.cancel();
+                    openSubscription();
+                }
+                publish();
+            }
+
+            @Override
+            public void onMessageRemoved(String id) {
+                localStore.removeMessageAsync(id);
+                if (window.removeLive(id)) {
+                    publish();
+                }
+            }
+
+            @Override
+            public void onError(Exception error) {
+                Log.e("ChatHistoryPager", "Error listening to messages: " + error.getMessage());
+                listener.onError();
+            }
+        });
+    }
+
+    /**
+     * This is a helper function. It hands a fresh copy of all the messages we hold to the listener.
+     */
+    private void publish() {
+        List<Message> messages = new ArrayList<>(window.size() + localMessages.size());
+        window.addTo(messages);
+        messages.addAll(localMessages.values());
+        listener.onMessagesChanged(messages);
+    }
+
+    public interface Listener {
+        void onMessagesChanged(List<Message> messages);
+
+        void onError();
+    }
+}
@@ -0,0 +1,224 @@
+package com.numad.firesidechat;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps the latest page of the chats the user is most likely to open on the device, so
+ * the {@link ChatHistoryPager} can render them from the {@link LocalChatStore} straight away.
+ * <br><br>
+ * While the dashboard is shown and the main thread has nothing else to do, the latest
+ * {@link ChatHistoryPager#PAGE_SIZE} messages of the top {@link #MAX_CONVERSATIONS} chats are
+ * fetched one chat at a time: chats with unread messages first, then the most recent ones. A chat
+ * is only fetched again once its summary shows a newer message, so chats that are already warm
+ * cost nothing, and then only about as many messages as it has unread ones. The stored messages in
+ * the range fetched are replaced, the same way the {@link ChatHistoryPager} does it, so messages
+ * that were deleted since, or removed outright, are dropped from the device. Fetching stops once
+ * about {@link #BUDGET_BYTES} have been read in the last {@link #BUDGET_WINDOW_MS}, and whenever
+ * the dashboard is left.
+ * <br><br>
+ * A fetch is counted against the budget when it is started, since its result is dropped if the
+ * plan is replaced by a new one that leaves its chat out. A fetch for a chat that is still among
+ * the top ones is left to finish.
+ * <br><br>
+ * Like {@link LocalChatStore}, there is only one instance. It is only used from the main thread.
+ */
+public class ChatPrefetcher {
+    public static final int MAX_CONVERSATIONS = 5;
+    public static final long BUDGET_BYTES = 256 * 1024;
+    public static final long BUDGET_WINDOW_MS = 10 * 60 * 1000;
+    // How long the summaries have to stay the same before we start
+    private static final long SETTLE_DELAY_MS = 1000;
+    // A rough size of everything but the text of a message: its ID, sender, timestamp and keys
+    private static final int MESSAGE_OVERHEAD_BYTES = 96;
+    // A rough size of the text of a message, to count a fetch before we know what it holds
+    private static final int AVERAGE_TEXT_BYTES = 64;
+    // How many messages beyond the unread ones are fetched for a warm chat, to cover the ones the
+    // user sent themselves and to overlap with the messages stored already
+    private static final int NEW_MESSAGES_SLACK = 10;
+
+    // Unread chats first, then the most recent ones
+    private static final Comparator<ConversationSummary> PRIORITY =
+            Comparator.comparing((ConversationSummary summary) -> summary.getUnreadCount() == 0)
+                    .thenComparing(ConversationSummary::getLastTimestamp, Comparator.reverseOrder());
+
+    private static ChatPrefetcher instance;
+    private final ChatRepository repository;
+    private final LocalChatStore localStore;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // The time of the latest message each chat had when it was prefetched, by conversation ID
+    private final HashMap<String, Long> warmUntil = new HashMap<>();
+    private final ArrayDeque<ConversationSummary> queue = new ArrayDeque<>();
+    private final ByteBudget budget = new ByteBudget(BUDGET_BYTES, BUDGET_WINDOW_MS);
+
+    @Nullable
+    private String owner;
+    @Nullable
+    private Runnable pendingStart;
+    // The chat being fetched. A fetch whose chat is no longer this one has been cancelled.
+    @Nullable
+    private ConversationSummary inFlight;
+    // Bumped on every cancel, so a fetch that was planned does not start afterwards
+    private int round;
+
+    private ChatPrefetcher(Context context) {
+        this.repository = ChatRepositories.getInstance();
+        this.localStore = LocalChatStore.getInstance(context);
+    }
+
+    public static synchronized ChatPrefetcher getInstance(Context context) {
+        if (instance == null) {
+            instance = new ChatPrefetcher(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * This function plans to prefetch the top chats among @param summaries, the chats of
+     * @param username keyed by peer. It starts once the summaries have settled and the main thread
+     * is idle, and replaces whatever was planned before, except a fetch that is already running for
+     * one of the top chats.
+     */
+    public void schedule(String username, Map<String, ConversationSummary> summaries) {
+        ConversationSummary running = username.equals(owner) ? inFlight : null;
+        cancel();
+        owner = username;
+        List<ConversationSummary> ranked = new ArrayList<>();
+        for (Map.Entry<String, ConversationSummary> entry : summaries.entrySet()) {
+            ConversationSummary summary = entry.getValue();
+            // A chat without messages has nothing to fetch
+            if (summary.getLastTimestamp() > 0) {
+                // Older summaries may not hold their peer or conversation, the key always tells
+                String peer = entry.getKey();
+                ranked.add(new ConversationSummary(peer, summary.getLastMessage(), summary.getLastTimestamp(),
+                        summary.getUnreadCount(), ConversationIds.conversationId(username, peer)));
+            }
+        }
+        ranked.sort(PRIORITY);
+        for (int i = 0; i < Math.min(MAX_CONVERSATIONS, ranked.size()); i++) {
+            ConversationSummary summary = ranked.get(i);
+            if (running != null && running.getConversationId().equals(summary.getConversationId())) {
+                inFlight = running;
+                if (running.getLastTimestamp() >= summary.getLastTimestamp()) {
+                    // The running fetch already covers it
+                    continue;
+                }
+            }
+            Long warm = warmUntil.get(summary.getConversationId());
+            if (warm == null || warm < summary.getLastTimestamp()) {
+                queue.add(summary);
+            }
+        }
+        if (queue.isEmpty()) {
+            return;
+        }
+        int scheduledRound = round;
+        pendingStart = () -> fetchWhenIdle(scheduledRound);
+        mainHandler.postDelayed(pendingStart, SETTLE_DELAY_MS);
+    }
+
+    /**
+     * This function stops prefetching until the next call to {@link #schedule}. It should be called
+     * once the dashboard is left, so the chat that is opened gets the connection to itself.
+     */
+    public void cancel() {
+        round++;
+        inFlight = null;
+        queue.clear();
+        if (pendingStart != null) {
+            mainHandler.removeCallbacks(pendingStart);
+            pendingStart = null;
+        }
+    }
+
+    /**
+     * This function forgets which chats are warm. It is called on log out, when the chats stored
+     * on the device are cleared.
+     */
+    public void clear() {
+        cancel();
+        warmUntil.clear();
+        owner = null;
+    }
+
+    /**
+     * This is a helper function. It fetches the next chat in the queue the next time the main
+     * thread runs out of work, as long as @param scheduledRound has not been cancelled.
+     */
+    private void fetchWhenIdle(int scheduledRound) {
+        pendingStart = null;
+        Looper.myQueue().addIdleHandler(() -> {
+            if (scheduledRound == round) {
+                fetchNext();
+            }
+            return false;
+        });
+    }
+
+    private void fetchNext() {
+        if (inFlight != null || owner == null || queue.isEmpty() || !budget.hasBudget(SystemClock.elapsedRealtime())) {
+            return;
+        }
+        String username = owner;
+        ConversationSummary summary = queue.poll();
+        inFlight = summary;
+        String conversationId = summary.getConversationId();
+        Long warm = warmUntil.get(conversationId);
+        // There is no way to ask for the messages after a given one, so a warm chat only asks for
+        // about as many of the latest ones as came in since
+        int limit = warm == null ? ChatHistoryPager.PAGE_SIZE
+                : Math.min(ChatHistoryPager.PAGE_SIZE, summary.getUnreadCount() + NEW_MESSAGES_SLACK);
+        long estimate = (long) limit * (MESSAGE_OVERHEAD_BYTES + AVERAGE_TEXT_BYTES);
+        budget.charge(estimate);
+        repository.loadLatestMessages(username, summary.getPeer(), limit, (page, error) -> {
+            if (inFlight != summary) {
+                return;
+            }
+            inFlight = null;
+            if (error != null || page == null) {
+                Log.e("ChatPrefetcher", "Error prefetching " + summary.getPeer() + ": " + error);
+                // Whatever went wrong would most likely go wrong for the next chat as well
+                queue.clear();
+                return;
+            }
+
+            long spent = 0;
+            List<Message> messages = new ArrayList<>(page.size());
+            for (Message message : page) {
+                spent += MESSAGE_OVERHEAD_BYTES + message.getMessage().length();
+                if (!message.getDeleted()) {
+                    messages.add(message);
+                }
+            }
+            // The estimate is replaced by what was actually read
+            budget.settle(estimate, spent);
+            // Anything stored from the oldest message fetched onwards that was not fetched was deleted,
+            // and a page that is not full holds the whole chat
+            localStore.replaceMessagesAsync(conversationId, page.size() < limit ? null : page.get(0), null, messages);
+            if (warm != null && page.size() == limit && page.get(0).getTimestamp() > warm) {
+                // More came in than the unread count tells, and the messages fetched do not reach
+                // the ones stored already. The whole latest page is fetched next.
+                warmUntil.remove(conversationId);
+                queue.addFirst(summary);
+            } else {
+                warmUntil.put(conversationId, summary.getLastTimestamp());
+            }
+            // A new plan that is still settling starts on its own
+            if (pendingStart == null) {
+                fetchWhenIdle(round);
+            }
+        });
+    }
+}
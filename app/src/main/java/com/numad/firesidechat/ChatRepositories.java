@@ -0,0 +1,40 @@
+package com.numad.firesidechat;
+
+/**
+ * This class hands out the {@link ChatRepository} the app uses.
+ * It is the {@link FirebaseChatRepository} unless another one has been set, for instance an
+ * {@link InMemoryChatRepository} for a benchmark or a load test.
+ * <br><br>
+ * It also hands out the one {@link SubscriptionRegistry} the screens share its subscriptions
+ * through.
+ */
+public final class ChatRepositories {
+    private static ChatRepository instance;
+    private static SubscriptionRegistry registry;
+
+    private ChatRepositories() {
+    }
+
+    public static synchronized ChatRepository getInstance() {
+        if (instance == null) {
+            instance = FirebaseChatRepository.getInstance();
+        }
+        return instance;
+    }
+
+    public static synchronized SubscriptionRegistry getRegistry() {
+        if (registry == null) {
+            registry = new SubscriptionRegistry(getInstance());
+        }
+        return registry;
+    }
+
+    /**
+     * This function replaces the repository the app uses with @param repository.
+     * It has to be called before any screen is shown.
+     */
+    public static synchronized void setInstance(ChatRepository repository) {
+        instance = repository;
+        registry = null;
+    }
+}
@@ -0,0 +1,135 @@
+package com.numad.firesidechat;
+
+import android.app.Application;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.lifecycle.AndroidViewModel;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This ViewModel holds the messages of one chat for the {@link ChatFragment}.
+ * <br><br>
+ * The messages are kept by a {@link ChatHistoryPager} that lives as long as the chat does, not as
+ * long as its view. When the chat is rotated, or comes back into view, it renders the messages we
+ * already hold straight away, without fetching them again.
+ * <br><br>
+ * The live subscription is only open while {@link #getMessages()} is observed by a started screen.
+ * It is paused in between, and only what changed in the meantime comes in when it resumes.
+ */
+public class ChatViewModel extends AndroidViewModel {
+    private final MessagesLiveData messages = new MessagesLiveData();
+    private final MutableLiveData<Boolean> error = new MutableLiveData<>(false);
+
+    @Nullable
+    private ChatHistoryPager historyPager;
+
+    public ChatViewModel(@NonNull Application application) {
+        super(application);
+    }
+
+    /**
+     * This function starts loading the chat between @param username and @param recipientName,
+     * along with the messages the user sent that are still in the {@link Outbox}.
+     * It only does anything the first time it is called.
+     */
+    public void start(String username, String recipientName) {
+        if (historyPager != null) {
+            return;
+        }
+        historyPager = new ChatHistoryPager(ChatRepositories.getInstance(), ChatRepositories.getRegistry(),
+                username, recipientName, LocalChatStore.getInstance(getApplication()),
+                ChatHistoryPager.DEFAULT_MAX_RESIDENT_MESSAGES, new ChatHistoryPager.Listener() {
+                    @Override
+                    public void onMessagesChanged(List<Message> messageList) {
+                        messages.setValue(messageList);
+                    }
+
+                    @Override
+                    public void onError() {
+                        error.setValue(true);
+                    }
+                });
+        if (!messages.hasActiveObservers()) {
+            historyPager.pause();
+        }
+        historyPager.start();
+        ChatHistoryPager pager = historyPager;
+        Outbox.getInstance(getApplication())
+                .loadPending(ConversationIds.conversationId(username, recipientName), pager::addLocalMessages);
+    }
+
+    /**
+     * This function returns the messages of the chat, oldest first.
+     */
+    public LiveData<List<Message>> getMessages() {
+        return messages;
+    }
+
+    /**
+     * This function returns whether something went wrong that the user has not been told about yet.
+     */
+    public LiveData<Boolean> getError() {
+        return error;
+    }
+
+    public void onErrorShown() {
+        error.setValue(false);
+    }
+
+    /**
+     * This function shows @param message as sent right away, while the {@link Outbox} sends it.
+     */
+    public void addLocalMessage(Message message) {
+        if (historyPager != null) {
+            historyPager.addLocalMessages(Collections.singletonList(message));
+        }
+    }
+
+    public void onScrolled(int firstVisiblePosition, int lastVisiblePosition) {
+        if (historyPager != null) {
+            historyPager.onScrolled(firstVisiblePosition, lastVisiblePosition);
+        }
+    }
+
+    @Nullable
+    public Message latestMessageExcept(String id) {
+        return historyPager == null ? null : historyPager.latestMessageExcept(id);
+    }
+
+    public void removeMessage(String id) {
+        if (historyPager != null) {
+            historyPager.removeMessage(id);
+        }
+    }
+
+    @Override
+    protected void onCleared() {
+        if (historyPager != null) {
+            historyPager.stop();
+        }
+    }
+
+    /**
+     * The messages, listened to for as long as a started screen observes them.
+     */
+    private class MessagesLiveData extends MutableLiveData<List<Message>> {
+        @Override
+        protected void onActive() {
+            if (historyPager != null) {
+                historyPager.resume();
+            }
+        }
+
+        @Override
+        protected void onInactive() {
+            if (historyPager != null) {
+                historyPager.pause();
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.numad.firesidechat;
+
+import android.util.Log;
+
+import com.google.firebase.database.DatabaseReference;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class keeps the conversation summaries in step with the messages.
+ * <br><br>
+ * Every user has a node under {@link FirebaseDatabaseManager#SUMMARIES_TAG} with one
+ * {@link ConversationSummary} per person they chat with. It holds the last message, its timestamp
+ * and the IDs of the messages that are unread. The dashboard only reads these, so it does not have to
+ * download any messages.
+ */
+public final class ConversationSummaries {
+    private ConversationSummaries() {
+    }
+
+    /**
+     * This function returns the reference to the summary @param owner keeps for their chat with @param peer.
+     */
+    public static DatabaseReference summaryRef(DatabaseReference rootRef, String owner, String peer) {
+        return rootRef.child(FirebaseDatabaseManager.SUMMARIES_TAG).child(owner).child(peer);
+    }
+
+    /**
+     * This function creates an empty summary for the chat between @param owner and @param peer
+     * if there is none yet, so that the chat shows up on the dashboard.
+     */
+    public static void ensureExists(DatabaseReference rootRef, String owner, String peer) {
+        DatabaseReference summaryRef = summaryRef(rootRef, owner, peer);
+        FirebaseDatabaseManager.requireScoped(summaryRef).get().addOnCompleteListener(task -> {
+            if (task.isSuccessful()) {
+                if (!task.getResult().exists()) {
+                    summaryRef.setValue(ModelCodec.encodeSummary(new ConversationSummary(peer, "", 0, 0,
+                            ConversationIds.conversationId(owner, peer))));
+                }
+            } else {
+                Log.e("ConversationSummaries", "Error getting summary: " + task.getException());
+            }
+        });
+    }
+
+    /**
+     * This function marks the chat @param owner has with @param peer as read.
+     */
+    public static void markRead(DatabaseReference rootRef, String owner, String peer) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put(FirebaseDatabaseManager.UNREAD_COUNT_TAG, 0);
+        fields.put(FirebaseDatabaseManager.UNREAD_MESSAGES_TAG, null);
+        summaryRef(rootRef, owner, peer).updateChildren(fields);
+    }
+
+    /**
+     * This function returns the summary fields that describe @param message as the latest message
+     * of the chat @param owner has with @param peer.
+     */
+    static Map<String, Object> previewFields(String owner, String peer, Message message) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put(FirebaseDatabaseManager.PEER_TAG, peer);
+        fields.put(FirebaseDatabaseManager.CONVERSATION_ID_TAG, ConversationIds.conversationId(owner, peer));
+        fields.put(FirebaseDatabaseManager.LAST_MESSAGE_TAG, SummaryCalculator.preview(message.getMessage()));
+        fields.put(FirebaseDatabaseManager.LAST_TIMESTAMP_TAG, message.getTimestamp());
+        return fields;
+    }
+}
@@ -6,29 +6,26 @@ import android.app.AlertDialog;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Bundle;
-import android.util.Log;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ArrayAdapter;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentManager;
+import androidx.lifecycle.ViewModelProvider;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.DatabaseReference;
-import com.google.firebase.database.GenericTypeIndicator;
-import com.google.firebase.database.ValueEventListener;
 import com.numad.firesidechat.databinding.FragmentDashboardBinding;
 
-import java.util.HashMap;
-import java.util.Set;
-import java.util.stream.Collectors;
-
 /**
  * This fragment is used to display the dashboard of the user.
  * From this dashboard, the user can access any chats they may have had with other users.
@@ -40,9 +37,15 @@ public class DashboardFragment extends Fragment implements RecyclerAdapter.OnNot
     private SharedPreferences sharedPreferences;
     private RecyclerAdapter adapter;
     private String username;
-    private FirebaseDatabaseManager databaseManager;
+    private ChatRepository repository;
+    private DashboardViewModel viewModel;
     private FragmentManager fragmentManager;
     private AlertDialog dialog;
+    private UsernameSearch usernameSearch;
+    private final Handler searchHandler = new Handler(Looper.getMainLooper());
+    private Runnable pendingSearch;
+    // How long the user has to stop typing before we look for suggestions
+    private static final long SEARCH_DEBOUNCE_MS = 300;
 
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container,
@@ -56,63 +59,76 @@ public class DashboardFragment extends Fragment implements RecyclerAdapter.OnNot
         return binding.getRoot();
     }
 
+    @Override
+    public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
+        super.onViewCreated(view, savedInstanceState);
+        observeSummaries();
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        if (pendingSearch != null) {
+            searchHandler.removeCallbacks(pendingSearch);
+        }
+        binding = null;
+    }
+
     /**
-     * This function is used to initialise the UI, set up the shared preferences, and set up the
-     * reference to the database.
+     * This function is used to initialise the UI, set up the shared preferences, and get the
+     * repository the chats are read from and the ViewModel holding them.
      */
     private void init() {
-        databaseManager = FirebaseDatabaseManager.getInstance();
+        repository = ChatRepositories.getInstance();
+        viewModel = new ViewModelProvider(this).get(DashboardViewModel.class);
         sharedPreferences = requireActivity().getSharedPreferences(LoginFragment.SHARED_PREFS_NAME, MODE_PRIVATE);
         fragmentManager = requireActivity().getSupportFragmentManager();
 
-        RecyclerView.LayoutManager layoutManager = new LinearLayoutManager(getContext());
+        LinearLayoutManager layoutManager = new LinearLayoutManager(getContext());
         binding.recyclerView.setLayoutManager(layoutManager);
         adapter = new RecyclerAdapter(this);
         binding.recyclerView.setAdapter(adapter);
+        adapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+                // Keep the latest chat in view when it moves to the top while the user is looking at the top
+                if (toPosition == 0 && layoutManager.findFirstCompletelyVisibleItemPosition() <= 1) {
+                    layoutManager.scrollToPosition(0);
+                }
+            }
+        });
+
+        usernameSearch = new UsernameSearch(repository);
     }
 
     /**
      * This function is used to populate the recycler view with the data from the database.
-     * It calls upon the message history object associated to the user from the Firebase database.
-     * If the object is populated, the dashboard is populated with the data.
-     * If the object is empty or does not exist, it means the user has not started a chat with
+     * It calls upon the conversation summaries associated to the user, held by the
+     * {@link DashboardViewModel}. The summaries only hold the last message and the unread count of
+     * each chat, so the dashboard never has to download the messages themselves.
+     * The ViewModel outlives the view, so coming back to the dashboard shows the summaries it
+     * already holds instead of loading them again.
+     * If the summaries are empty or do not exist, it means the user has not started a chat with
      * any other user and so the dashboard will be blank.
      */
     private void initDashboardWithDatabaseData() {
         username = sharedPreferences.getString(LoginFragment.NAME_PREF_NAME, "testUser");
-        DatabaseReference dbRef = databaseManager.getDatabaseReference();
+        viewModel.start(username);
+    }
 
-        // At this point, the database has a message history child.
-        // We need to fetch the keys and values from the child.
+    /**
+     * This function shows the summaries held by the ViewModel, and every change to them.
+     * They are only listened to while the dashboard is started, so going to a chat and back does
+     * not leave another listener behind each time.
+     */
+    private void observeSummaries() {
         // The keys would be used to populate the recycler view.
         // The values will have some data about the chat that needs to be passed to the recycler view as well.
-        dbRef.child(FirebaseDatabaseManager.MESSAGE_HISTORY_TAG).get().addOnCompleteListener(task -> {
-            if (task.isSuccessful()) {
-                DataSnapshot userMessageHistorySnapshot = task.getResult();
-                if (userMessageHistorySnapshot.exists()) {
-                    // We have entries for our user. We need to populate the recycler view.
-                    dbRef.child(FirebaseDatabaseManager.MESSAGE_HISTORY_TAG).child(username)
-                            .addValueEventListener(new ValueEventListener() {
-                                @Override
-                                public void onDataChange(@NonNull DataSnapshot snapshot) {
-                                    GenericTypeIndicator<HashMap<String, MessageHistoryObject>> t =
-                                            new GenericTypeIndicator<>() {
-                                            };
-                                    HashMap<String, MessageHistoryObject> messageData = snapshot.getValue(t);
-                                    if (messageData != null) {
-                                        adapter.setChats(messageData);
-                                    }
-                                }
-
-                                @Override
-                                public void onCancelled(@NonNull DatabaseError error) {
-                                    Toast.makeText(getContext(), getString(R.string.something_went_wrong), Toast.LENGTH_SHORT).show();
-                                }
-                            });
-                }
-            } else {
-                Log.e("Dashboard", "Error getting database: " + task.getException());
+        viewModel.getSummaries().observe(getViewLifecycleOwner(), summaries -> adapter.setChats(summaries));
+        viewModel.getError().observe(getViewLifecycleOwner(), error -> {
+            if (error) {
                 Toast.makeText(getContext(), getString(R.string.something_went_wrong), Toast.LENGTH_SHORT).show();
+                viewModel.onErrorShown();
             }
         });
     }
@@ -123,95 +139,87 @@ public class DashboardFragment extends Fragment implements RecyclerAdapter.OnNot
     private void initListeners() {
         binding.buttonNewMessage.setOnClickListener(v -> handleContactSearch());
 
+        binding.editTextName.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                scheduleSuggestions(s.toString());
+            }
+        });
+
         binding.user.setOnClickListener(v -> showLogoutDialog());
     }
 
+    /**
+     * This function looks for suggestions for @param prefix once the user has stopped typing for
+     * {@link #SEARCH_DEBOUNCE_MS}, so we do not query on every key press.
+     */
+    private void scheduleSuggestions(String prefix) {
+        if (pendingSearch != null) {
+            searchHandler.removeCallbacks(pendingSearch);
+        }
+        pendingSearch = () -> usernameSearch.suggest(prefix, names -> {
+            if (binding == null || !prefix.equals(binding.editTextName.getText().toString())) {
+                // The user has typed something else since
+                return;
+            }
+            binding.editTextName.setAdapter(new ArrayAdapter<>(requireContext(),
+                    android.R.layout.simple_dropdown_item_1line, names));
+            if (!names.isEmpty() && binding.editTextName.hasFocus()) {
+                binding.editTextName.showDropDown();
+            }
+        });
+        searchHandler.postDelayed(pendingSearch, SEARCH_DEBOUNCE_MS);
+    }
+
     /**
      * This function is called when the user clicks on the search button to find a user.
-     * If a user is found, a chat window is opened. If not, a toast is displayed to the user informing them
-     * that there is no user by the name that they have searched. If a chat already exists between the 2 users,
-     * the chat window is opened.
+     * The name is looked up in the username index, ignoring case, so only that one entry is read.
+     * If a user is found, a chat window is opened with the name as it is stored. If not, a toast is
+     * displayed to the user informing them that there is no user by the name that they have searched.
+     * If a chat already exists between the 2 users, the chat window is opened.
      */
     private void handleContactSearch() {
-        // Login would have ensured that the database has a users child.
-        // We simply need to parse through an available list of users to find a match.
-        DatabaseReference dbRef = databaseManager.getDatabaseReference().child(FirebaseDatabaseManager.USERS_TAG);
-        dbRef.get().addOnCompleteListener(task -> {
-            if (task.isSuccessful()) {
-                DataSnapshot usersSnapshot = task.getResult();
-                if (usersSnapshot.exists()) {
-                    // We have the fetch the data and find the keys. If the key matches with the
-                    // user's query, then we can open up a chat window.
-                    GenericTypeIndicator<HashMap<String, Object>> t =
-                            new GenericTypeIndicator<>() {
-                            };
-                    HashMap<String, Object> usersData = usersSnapshot.getValue(t);
-                    if (usersData != null) {
-                        // Parse through the key set and identify a match.
-                        Set<String> keys = usersData.keySet();
-                        String recipientName = binding.editTextName.getText().toString().trim();
-                        if (keys.stream().map(String::toLowerCase).collect(Collectors.toSet()).contains(recipientName.toLowerCase())) {
-                            // Set up the communication objects
-                            verifyExistingChat(recipientName);
-
-                            // Move to the chat window
-                            fragmentManager.beginTransaction()
-                                    .replace(R.id.fragment_container_view, ChatFragment.newInstance(username, recipientName))
-                                    .addToBackStack("Chat Dashboard")
-                                    .commit();
-                        } else {
-                            Toast.makeText(getContext(), getString(R.string.no_user_found), Toast.LENGTH_SHORT).show();
-                        }
-                    }
-                } else {
-                    Log.e("Dashboard", "Error getting database: " + task.getException());
-                    Toast.makeText(getContext(), getString(R.string.something_went_wrong), Toast.LENGTH_SHORT).show();
-                }
-            } else {
-                Log.e("Dashboard", "Error getting database: " + task.getException());
-                Toast.makeText(getContext(), getString(R.string.something_went_wrong), Toast.LENGTH_SHORT).show();
+        String searchedName = binding.editTextName.getText().toString().trim();
+        usernameSearch.resolve(searchedName, recipientName -> {
+            if (binding == null) {
+                return;
             }
+            if (recipientName == null) {
+                Toast.makeText(getContext(), getString(R.string.no_user_found), Toast.LENGTH_SHORT).show();
+                return;
+            }
+            // Set up the communication objects
+            verifyExistingChat(recipientName);
+
+            // Move to the chat window
+            fragmentManager.beginTransaction()
+                    .replace(R.id.fragment_container_view, ChatFragment.newInstance(username, recipientName))
+                    .addToBackStack("Chat Dashboard")
+                    .commit();
         });
     }
 
     /**
      * This function is used to set up the communication objects in the database if it is not already.
-     * However, if it already exists, we can move ahead to the chat fragment without worry.
+     * Both users get a conversation summary pointing at the conversation they share, so the chat shows
+     * up on both dashboards. However, if they already exist, we can move ahead to the chat fragment
+     * without worry.
      */
     private void verifyExistingChat(String recipientName) {
-        DatabaseReference dbRef = databaseManager.getDatabaseReference()
-                .child(FirebaseDatabaseManager.MESSAGE_HISTORY_TAG);
-
         // We verify a 2-way communication object.
-        initiateChatterRecipientDataConnection(dbRef, username, recipientName);
-        initiateChatterRecipientDataConnection(dbRef, recipientName, username);
+        repository.ensureConversation(username, recipientName);
 
         binding.editTextName.setText("");
     }
 
-    /**
-     * This is a helper function that helps set up the communication objects in the database if it
-     * is not already present. Since we choose to store the message history between 2 users for both
-     * users, this function creates the object for @param name1 and @param name2.
-     */
-    private void initiateChatterRecipientDataConnection(DatabaseReference dbRef, String name1, String name2) {
-        dbRef.child(name1).child(name2).get().addOnCompleteListener(task -> {
-            if (task.isSuccessful()) {
-                // We have reference to the database. We must check if the chat objects exist.
-                DataSnapshot messageHistorySnapshot = task.getResult();
-                if (!messageHistorySnapshot.exists()) {
-                    // If the chat object does not exist, we create it.
-                    MessageHistoryObject messageHistoryObject = new MessageHistoryObject();
-                    dbRef.child(name1).child(name2).setValue(messageHistoryObject);
-                }
-                // In case the chat object exists, we can move ahead without worry.
-            } else {
-                Log.e("Dashboard", "Error getting database: " + task.getException());
-                Toast.makeText(getContext(), getString(R.string.something_went_wrong), Toast.LENGTH_SHORT).show();
-            }
-        });
-    }
-
     /**
      * This function triggers a dialog box to prompt the user to log out.
      */
@@ -221,14 +229,7 @@ public class DashboardFragment extends Fragment implements RecyclerAdapter.OnNot
             dialog = new AlertDialog.Builder(context)
                     .setTitle(context.getString(R.string.log_out))
                     .setMessage(context.getString(R.string.log_out_message))
-                    .setPositiveButton(context.getString(R.string.yes), (dialog, which) -> {
-                        SharedPreferences preferences = context.getSharedPreferences(LoginFragment.SHARED_PREFS_NAME, Context.MODE_PRIVATE);
-                        preferences.edit().clear().apply();
-
-                        fragmentManager.beginTransaction()
-                                .replace(R.id.fragment_container_view, new LoginFragment())
-                                .commit();
-                    })
+                    .setPositiveButton(context.getString(R.string.yes), (dialog, which) -> confirmLogout(context))
                     .setNegativeButton(context.getString(R.string.no), null)
                     .create();
         } else if (!dialog.isShowing()) {
@@ -236,9 +237,45 @@ public class DashboardFragment extends Fragment implements RecyclerAdapter.OnNot
         }
     }
 
+    /**
+     * This function logs the user out, after asking again if there are messages in the
+     * {@link Outbox} that have not been sent yet, since logging out discards them.
+     */
+    private void confirmLogout(Context context) {
+        LocalChatStore.getInstance(context).countOutbox(unsentCount -> {
+            if (!isAdded()) {
+                return;
+            }
+            if (unsentCount == 0) {
+                logOut(context);
+                return;
+            }
+            new AlertDialog.Builder(context)
+                    .setTitle(context.getString(R.string.log_out))
+                    .setMessage(context.getResources().getQuantityString(R.plurals.log_out_unsent_messages,
+                            unsentCount, unsentCount))
+                    .setPositiveButton(context.getString(R.string.yes), (dialog, which) -> logOut(context))
+                    .setNegativeButton(context.getString(R.string.no), null)
+                    .show();
+        });
+    }
+
+    private void logOut(Context context) {
+        SharedPreferences preferences = context.getSharedPreferences(LoginFragment.SHARED_PREFS_NAME, Context.MODE_PRIVATE);
+        preferences.edit().clear().apply();
+        Outbox.getInstance(context).clear();
+        LocalChatStore.getInstance(context).clearAsync();
+        ChatPrefetcher.getInstance(context).clear();
+
+        fragmentManager.beginTransaction()
+                .replace(R.id.fragment_container_view, new LoginFragment())
+                .commit();
+    }
+
     /**
      * This function is called when a user clicks on a chat in the dashboard.
-     * It calls upon the chat fragment to handle the communication.
+     * It calls upon the chat fragment to handle the communication. The latest messages of the top
+     * chats have been prefetched by the {@link ChatPrefetcher}, so those open without waiting.
      */
     public void onNoteClick(String recipientName) {
         // Move to the chat window
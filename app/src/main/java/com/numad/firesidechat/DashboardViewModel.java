@@ -0,0 +1,132 @@
+package com.numad.firesidechat;
+
+import android.app.Application;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.lifecycle.AndroidViewModel;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import java.util.HashMap;
+
+/**
+ * This ViewModel holds the conversation summaries of the user for the {@link DashboardFragment}.
+ * <br><br>
+ * The summaries outlive the view of the dashboard, so coming back from a chat or rotating the
+ * screen renders the ones we already hold straight away. Until the repository has sent any, the
+ * copy kept in the {@link LocalChatStore} is shown.
+ * <br><br>
+ * The summaries are only listened to while {@link #getSummaries()} is observed by a started screen.
+ * In the meantime, the {@link ChatPrefetcher} keeps the chats the user is most likely to open warm.
+ */
+public class DashboardViewModel extends AndroidViewModel {
+    private final SummariesLiveData summaries = new SummariesLiveData();
+    private final MutableLiveData<Boolean> error = new MutableLiveData<>(false);
+
+    @Nullable
+    private String username;
+    private boolean summariesReceived;
+
+    public DashboardViewModel(@NonNull Application application) {
+        super(application);
+    }
+
+    /**
+     * This function starts loading the summaries of @param user. It only does anything the first
+     * time it is called.
+     */
+    public void start(String user) {
+        if (username != null) {
+            return;
+        }
+        username = user;
+
+        // Chats from before conversations were shared are moved over once, in the background.
+        ChatRepositories.getInstance().prepareUser(user);
+
+        // Show the summaries we have on the device straight away, until the repository catches up.
+        LocalChatStore.getInstance(getApplication()).loadSummaries(user, storedSummaries -> {
+            if (!summariesReceived && !storedSummaries.isEmpty()) {
+                summaries.setValue(storedSummaries);
+            }
+        });
+        if (summaries.hasActiveObservers()) {
+            summaries.subscribe();
+        }
+    }
+
+    /**
+     * This function returns the conversation summaries of the user, keyed by the other user's name.
+     */
+    public LiveData<HashMap<String, ConversationSummary>> getSummaries() {
+        return summaries;
+    }
+
+    /**
+     * This function returns whether something went wrong that the user has not been told about yet.
+     */
+    public LiveData<Boolean> getError() {
+        return error;
+    }
+
+    public void onErrorShown() {
+        error.setValue(false);
+    }
+
+    @Override
+    protected void onCleared() {
+        summaries.cancel();
+    }
+
+    /**
+     * The summaries, listened to for as long as a started screen observes them.
+     */
+    private class SummariesLiveData extends MutableLiveData<HashMap<String, ConversationSummary>> {
+        @Nullable
+        private ChatRepository.Subscription subscription;
+
+        @Override
+        protected void onActive() {
+            subscribe();
+        }
+
+        @Override
+        protected void onInactive() {
+            cancel();
+        }
+
+        void subscribe() {
+            if (username == null || subscription != null) {
+                return;
+            }
+            String user = username;
+            // We only ever listen to the summaries of our own user.
+            subscription = ChatRepositories.getRegistry().observeSummaries(user,
+                    new ChatRepository.Listener<HashMap<String, ConversationSummary>>() {
+                        @Override
+                        public void onChanged(HashMap<String, ConversationSummary> value) {
+                            summariesReceived = true;
+                            setValue(value);
+                            LocalChatStore.getInstance(getApplication()).replaceSummariesAsync(user, value);
+                            ChatPrefetcher.getInstance(getApplication()).schedule(user, value);
+                        }
+
+                        @Override
+                        public void onError(Exception exception) {
+                            Log.e("Dashboard", "Error getting summaries: " + exception.getMessage());
+                            error.setValue(true);
+                        }
+                    });
+        }
+
+        void cancel() {
+            if (subscription != null) {
+                subscription.cancel();
+                subscription = null;
+                ChatPrefetcher.getInstance(getApplication()).cancel();
+            }
+        }
+    }
+}
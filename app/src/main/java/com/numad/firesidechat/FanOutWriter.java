@@ -0,0 +1,145 @@
+package com.numad.firesidechat;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class writes a message, or its deletion, to every place it is stored in one go.
+ * <br><br>
+ * A message is stored once, in the day bucket of the conversation the two users share, and that
+ * bucket is listed in the bucket index of the conversation. Both of their conversation summaries
+ * describe it. Instead of writing each of those separately, we collect
+ * every path into one map and hand it to {@link DatabaseReference#updateChildren(Map)}. That is a single round trip, and Firebase
+ * applies it atomically, so the two users can never end up with summaries that disagree with the chat.
+ */
+public final class FanOutWriter {
+
+    private FanOutWriter() {
+    }
+
+    /**
+     * This function sends every message in @param entries in a single update.
+     * It writes each message under its ID in the bucket of its day, lists that bucket in the index of
+     * its conversation, points both summaries of each chat at its latest
+     * message, and lists it as unread in the summary of its recipient.
+     * <br><br>
+     * Unread messages are listed by ID rather than counted, so sending the same batch again after a
+     * lost acknowledgement leaves the unread counts as they are.
+     * <br><br>
+     * The entries must be ordered oldest first, so that the latest message of a chat is the one
+     * whose preview ends up in the update.
+     * <br><br>
+     * The outcome is handed to @param listener, with the {@link DatabaseError} the write failed with,
+     * so it can be told whether it was refused for good.
+     */
+    public static void sendAll(DatabaseReference rootRef, List<OutboxEntry> entries,
+                               DatabaseReference.CompletionListener listener) {
+        Map<String, Object> updates = new HashMap<>();
+        for (OutboxEntry entry : entries) {
+            Message message = entry.getMessage();
+            String sender = message.getSender();
+            String recipient = entry.getRecipient();
+            updates.put(messagePath(sender, recipient, message), ModelCodec.encodeMessage(message));
+            updates.put(bucketIndexPath(sender, recipient, message), true);
+
+            putPreview(updates, sender, recipient, message);
+            putPreview(updates, recipient, sender, message);
+            updates.put(unreadPath(recipient, sender, message), true);
+        }
+
+        rootRef.updateChildren(updates, listener);
+    }
+
+    /**
+     * This function writes @param messages into the chat between @param name1 and @param name2 in a
+     * single update, each in the bucket of its day, without touching the summaries.
+     */
+    public static Task<Void> importAll(DatabaseReference rootRef, String name1, String name2, List<Message> messages) {
+        Map<String, Object> updates = new HashMap<>();
+        for (Message message : messages) {
+            updates.put(messagePath(name1, name2, message), ModelCodec.encodeMessage(message));
+            updates.put(bucketIndexPath(name1, name2, message), true);
+        }
+        return rootRef.updateChildren(updates);
+    }
+
+    /**
+     * This function deletes @param message from the chat between @param name1 and @param name2.
+     * Both summaries are pointed at @param newLatest, the message that is the latest one once the
+     * deletion is done, or cleared when there is none left.
+     * <br><br>
+     * If @param tombstone is true, the message is not removed but marked as deleted and its text
+     * cleared. Listeners then get a small change for that one message.
+     * <br><br>
+     * The message is taken off the unread list of its recipient in the same update. If they had
+     * already read it, it is no longer listed, and nothing changes.
+     */
+    public static Task<Void> delete(DatabaseReference rootRef, String name1, String name2,
+                                    Message message, @Nullable Message newLatest, boolean tombstone) {
+        Map<String, Object> updates = new HashMap<>();
+        String messagePath = messagePath(name1, name2, message);
+        if (tombstone) {
+            updates.put(path(messagePath, FirebaseDatabaseManager.DELETED_TAG), true);
+            updates.put(path(messagePath, FirebaseDatabaseManager.MESSAGE_TEXT_TAG), "");
+        } else {
+            updates.put(messagePath, null);
+        }
+
+        String recipient = name1.equals(message.getSender()) ? name2 : name1;
+        updates.put(unreadPath(recipient, message.getSender(), message), null);
+
+        Message latest = newLatest == null ? new Message() : newLatest;
+        putPreview(updates, name1, name2, latest);
+        putPreview(updates, name2, name1, latest);
+
+        return rootRef.updateChildren(updates);
+    }
+
+    private static void putPreview(Map<String, Object> updates, String owner, String peer, Message message) {
+        String summaryPath = summaryPath(owner, peer);
+        for (Map.Entry<String, Object> field : ConversationSummaries.previewFields(owner, peer, message).entrySet()) {
+            updates.put(path(summaryPath, field.getKey()), field.getValue());
+        }
+    }
+
+    /**
+     * This function returns the path @param message is stored under in the conversation between
+     * @param name1 and @param name2.
+     */
+    public static String messagePath(String name1, String name2, Message message) {
+        return path(FirebaseDatabaseManager.CONVERSATIONS_TAG, ConversationIds.conversationId(name1, name2),
+                FirebaseDatabaseManager.BUCKETS_TAG, MessageBuckets.bucketOf(message.getTimestamp()), message.getId());
+    }
+
+    /**
+     * This function returns the path that lists the bucket of @param message in the index of the
+     * conversation between @param name1 and @param name2.
+     */
+    public static String bucketIndexPath(String name1, String name2, Message message) {
+        return path(FirebaseDatabaseManager.CONVERSATIONS_TAG, ConversationIds.conversationId(name1, name2),
+                FirebaseDatabaseManager.BUCKET_INDEX_TAG, MessageBuckets.bucketOf(message.getTimestamp()));
+    }
+
+    /**
+     * This function returns the path that lists @param message as unread in the summary @param owner
+     * keeps for their chat with @param peer.
+     */
+    private static String unreadPath(String owner, String peer, Message message) {
+        return path(summaryPath(owner, peer), FirebaseDatabaseManager.UNREAD_MESSAGES_TAG, message.getId());
+    }
+
+    private static String summaryPath(String owner, String peer) {
+        return path(FirebaseDatabaseManager.SUMMARIES_TAG, owner, peer);
+    }
+
+    private static String path(String... segments) {
+        return String.join("/", segments);
+    }
+}
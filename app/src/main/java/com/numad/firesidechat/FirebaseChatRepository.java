@@ -0,0 +1,510 @@
+package com.numad.firesidechat;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseException;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class is the {@link ChatRepository} the app runs on, backed by the Firebase Realtime Database
+ * through {@link FirebaseDatabaseManager}.
+ * <br><br>
+ * Every read of per-user data goes through {@link FirebaseDatabaseManager#requireScoped}. Messages
+ * are stored in one bucket per day, see {@link MessageBuckets}, so no listener or write touches a
+ * node that grows with the whole history of a chat. Within a bucket, messages are ordered by
+ * timestamp, with the message key breaking ties; that query needs the ".indexOn" rule in
+ * database.rules.json.
+ * <br><br>
+ * Firebase calls back on the main thread, so snapshots are not turned into models there. They are
+ * handed to a single decode thread, read into models with {@link ModelCodec} rather than the
+ * reflective mapper of {@link DataSnapshot#getValue(Class)}, and only the finished models are
+ * posted back to the main thread. Since there is one decode thread, the events of a listener
+ * arrive in the order Firebase sent them, and none arrive after its subscription is cancelled.
+ */
+public class FirebaseChatRepository implements ChatRepository {
+    private static FirebaseChatRepository instance;
+
+    private final DatabaseReference rootRef;
+    private final ExecutorService decodeExecutor = Executors.newSingleThreadExecutor();
+    // Pages of messages are put together here, one read after another
+    private final ExecutorService pageExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private FirebaseChatRepository() {
+        rootRef = FirebaseDatabaseManager.getInstance().getDatabaseReference();
+    }
+
+    public static synchronized FirebaseChatRepository getInstance() {
+        if (instance == null) {
+            instance = new FirebaseChatRepository();
+        }
+        return instance;
+    }
+
+    /**
+     * Chats from before conversations were shared are moved over once, in the background, and users
+     * who signed up before the username index existed are added to it, see {@link LegacyHistoryMigration}.
+     */
+    @Override
+    public void prepareUser(String username) {
+        LegacyHistoryMigration.runOnce(rootRef, username);
+
+        DatabaseReference entryRef = rootRef.child(usernameIndexPath(username));
+        entryRef.get().addOnCompleteListener(task -> {
+            if (!task.isSuccessful()) {
+                Log.e("FirebaseChatRepository", "Error checking the index entry of " + username + ": " + task.getException());
+            } else if (!task.getResult().exists()) {
+                entryRef.setValue(true);
+            }
+        });
+    }
+
+    @Override
+    public void getUser(String name, Callback<User> callback) {
+        complete(FirebaseDatabaseManager.requireScoped(rootRef.child(FirebaseDatabaseManager.USERS_TAG).child(name)).get(),
+                snapshot -> ModelCodec.decodeUser(snapshot.getValue()), callback);
+    }
+
+    /**
+     * The user is listed in the username index in the same update, under their lowercased name.
+     */
+    @Override
+    public void saveUser(String name, User user, Callback<Void> callback) {
+        Map<String, Object> updates = new HashMap<>();
+        updates.put(FirebaseDatabaseManager.USERS_TAG + "/" + name, ModelCodec.encodeUser(user));
+        updates.put(usernameIndexPath(name), true);
+        complete(rootRef.updateChildren(updates), callback);
+    }
+
+    /**
+     * Every user is listed as usernameIndex/<lowercased name>/<name> = true, so this is a key range
+     * query that costs the same no matter how many users there are.
+     */
+    @Override
+    public void findUsernames(String prefix, int limit, Callback<List<String>> callback) {
+        String key = normalizeUsername(prefix);
+        complete(rootRef.child(FirebaseDatabaseManager.USERNAME_INDEX_TAG)
+                        .orderByKey().startAt(key).endAt(key + "\uf8ff").limitToFirst(limit).get(),
+                snapshot -> {
+                    List<String> names = new ArrayList<>();
+                    for (DataSnapshot entry : snapshot.getChildren()) {
+                        for (DataSnapshot name : entry.getChildren()) {
+                            names.add(name.getKey());
+                        }
+                    }
+                    return names;
+                }, callback);
+    }
+
+    @Override
+    public void resolveUsername(String name, Callback<String> callback) {
+        complete(FirebaseDatabaseManager.requireScoped(rootRef.child(FirebaseDatabaseManager.USERNAME_INDEX_TAG)
+                        .child(normalizeUsername(name))).get(),
+                snapshot -> {
+                    String match = null;
+                    for (DataSnapshot entry : snapshot.getChildren()) {
+                        if (match == null || name.equals(entry.getKey())) {
+                            match = entry.getKey();
+                        }
+                    }
+                    return match;
+                }, callback);
+    }
+
+    @Override
+    public void ensureConversation(String name1, String name2) {
+        ConversationSummaries.ensureExists(rootRef, name1, name2);
+        ConversationSummaries.ensureExists(rootRef, name2, name1);
+    }
+
+    @Override
+    public void markRead(String owner, String peer) {
+        ConversationSummaries.markRead(rootRef, owner, peer);
+    }
+
+    @Override
+    public Subscription subscribeToSummaries(String owner, Listener<HashMap<String, ConversationSummary>> listener) {
+        Query query = FirebaseDatabaseManager.requireScoped(rootRef.child(FirebaseDatabaseManager.SUMMARIES_TAG).child(owner));
+        AtomicBoolean cancelled = new AtomicBoolean();
+        ValueEventListener valueListener = new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot snapshot) {
+                decode(() -> ModelCodec.decodeSummaries(snapshot.getValue()), listener::onChanged, listener::onError, cancelled);
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError error) {
+                decode(error::toException, listener::onError, listener::onError, cancelled);
+            }
+        };
+        query.addValueEventListener(valueListener);
+        return () -> {
+            cancelled.set(true);
+            query.removeEventListener(valueListener);
+        };
+    }
+
+    @Override
+    public String newMessageId(String name1, String name2) {
+        return FirebaseDatabaseManager.getInstance().getConversationReference(name1, name2).push().getKey();
+    }
+
+    @Override
+    public void loadLatestMessages(String name1, String name2, int limit, Callback<List<Message>> callback) {
+        loadPage(name1, name2, null, limit, callback);
+    }
+
+    @Override
+    public void loadMessagesBefore(String name1, String name2, Message before, int limit, Callback<List<Message>> callback) {
+        loadPage(name1, name2, before, limit, callback);
+    }
+
+    /**
+     * Every bucket from the one @param from is in up to the hot one, the newest in the bucket index,
+     * is listened to, each from @param from onwards. When a message starts a newer bucket, that one
+     * is listened to as well. Buckets before the one @param from is in are only read on demand.
+     */
+    @Override
+    public Subscription subscribeToMessages(String name1, String name2, @Nullable Message from, MessageListener listener) {
+        AtomicBoolean cancelled = new AtomicBoolean();
+        ChildEventListener messageListener = new ChildEventListener() {
+            @Override
+            public void onChildAdded(@NonNull DataSnapshot snapshot, @Nullable String previousChildName) {
+                notifyChanged(snapshot);
+            }
+
+            @Override
+            public void onChildChanged(@NonNull DataSnapshot snapshot, @Nullable String previousChildName) {
+                notifyChanged(snapshot);
+            }
+
+            @Override
+            public void onChildRemoved(@NonNull DataSnapshot snapshot) {
+                // Goes through the decode thread too, so it cannot overtake a change decoded before it
+                decode(snapshot::getKey, listener::onMessageRemoved, listener::onError, cancelled);
+            }
+
+            @Override
+            public void onChildMoved(@NonNull DataSnapshot snapshot, @Nullable String previousChildName) {
+                // Messages never move, their timestamps are fixed when they are sent.
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError error) {
+                decode(error::toException, listener::onError, listener::onError, cancelled);
+            }
+
+            private void notifyChanged(DataSnapshot snapshot) {
+                decode(() -> readMessage(snapshot), message -> {
+                    if (message != null) {
+                        listener.onMessageChanged(message);
+                    }
+                }, listener::onError, cancelled);
+            }
+        };
+
+        // The buckets we listen to, by name. That is every bucket from the one @param from is in up to
+        // the hot one, so changes to older messages of the window are seen too, and the buckets
+        // created later on as the days go by.
+        Map<String, Query> bucketQueries = new HashMap<>();
+        Query buckets = bucketIndexRef(name1, name2).orderByKey();
+        if (from != null) {
+            buckets = buckets.startAt(MessageBuckets.bucketOf(from.getTimestamp()));
+        }
+        Query bucketIndex = buckets;
+        ChildEventListener indexListener = new ChildEventListener() {
+            @Override
+            public void onChildAdded(@NonNull DataSnapshot snapshot, @Nullable String previousChildName) {
+                String bucket = snapshot.getKey();
+                if (cancelled.get() || bucket == null || bucketQueries.containsKey(bucket)) {
+                    return;
+                }
+                Query query = bucketRef(name1, name2, bucket).orderByChild(FirebaseDatabaseManager.TIMESTAMP_TAG);
+                if (from != null) {
+                    query = query.startAt(from.getTimestamp(), from.getId());
+                }
+                query.addChildEventListener(messageListener);
+                bucketQueries.put(bucket, query);
+            }
+
+            @Override
+            public void onChildChanged(@NonNull DataSnapshot snapshot, @Nullable String previousChildName) {
+            }
+
+            @Override
+            public void onChildRemoved(@NonNull DataSnapshot snapshot) {
+                // Buckets are never removed from the index
+            }
+
+            @Override
+            public void onChildMoved(@NonNull DataSnapshot snapshot, @Nullable String previousChildName) {
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError error) {
+                decode(error::toException, listener::onError, listener::onError, cancelled);
+            }
+        };
+        bucketIndex.addChildEventListener(indexListener);
+        return () -> {
+            cancelled.set(true);
+            bucketIndex.removeEventListener(indexListener);
+            for (Query query : bucketQueries.values()) {
+                query.removeEventListener(messageListener);
+            }
+            bucketQueries.clear();
+        };
+    }
+
+    @Override
+    public void sendMessages(List<OutboxEntry> entries, Callback<Void> callback) {
+        try {
+            FanOutWriter.sendAll(rootRef, entries, (error, ref) -> {
+                if (error == null) {
+                    callback.onComplete(null, null);
+                } else if (isRefusal(error)) {
+                    callback.onComplete(null, new RejectedException("Messages refused", error.toException()));
+                } else {
+                    callback.onComplete(null, error.toException());
+                }
+            });
+        } catch (DatabaseException e) {
+            // A path or value Firebase cannot store, or one that is too large, is refused before
+            // anything is sent
+            callback.onComplete(null, new RejectedException("Invalid messages", e));
+        }
+    }
+
+    /**
+     * This is a helper function. It returns whether @param error means the server will refuse the
+     * same write however often it is sent. Other errors, such as a lost connection, a network error
+     * or a write cancelled on the way, may go away on their own.
+     */
+    private static boolean isRefusal(DatabaseError error) {
+        switch (error.getCode()) {
+            case DatabaseError.PERMISSION_DENIED:
+            case DatabaseError.INVALID_TOKEN:
+            case DatabaseError.EXPIRED_TOKEN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public void importMessages(String name1, String name2, List<Message> messages, Callback<Void> callback) {
+        complete(FanOutWriter.importAll(rootRef, name1, name2, messages), callback);
+    }
+
+    @Override
+    public void deleteMessage(String name1, String name2, Message message, @Nullable Message newLatest,
+                              boolean tombstone, Callback<Void> callback) {
+        complete(FanOutWriter.delete(rootRef, name1, name2, message, newLatest, tombstone), callback);
+    }
+
+    @Override
+    public Subscription subscribeToConnection(Listener<Boolean> listener) {
+        DatabaseReference connectedRef = rootRef.getDatabase().getReference(".info/connected");
+        ValueEventListener valueListener = new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot snapshot) {
+                listener.onChanged(Boolean.TRUE.equals(snapshot.getValue()));
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError error) {
+                listener.onError(error.toException());
+            }
+        };
+        connectedRef.addValueEventListener(valueListener);
+        return () -> connectedRef.removeEventListener(valueListener);
+    }
+
+    /**
+     * This is a helper function. It walks back through the buckets of the chat between @param name1
+     * and @param name2, starting at the newest one, or at the one @param before is in, and hands up
+     * to @param limit messages older than @param before, oldest first, to @param callback.
+     * <br><br>
+     * Each step reads the messages it needs from one bucket, and one entry of the bucket index to
+     * find the bucket before it, so days without messages are skipped. It runs on the paging thread
+     * since it waits on every read.
+     */
+    private void loadPage(String name1, String name2, @Nullable Message before, int limit,
+                          Callback<List<Message>> callback) {
+        DatabaseReference indexRef = bucketIndexRef(name1, name2);
+        pageExecutor.execute(() -> {
+            try {
+                List<Message> page = new ArrayList<>();
+                String bucket = before == null
+                        ? previousBucket(indexRef, null)
+                        : MessageBuckets.bucketOf(before.getTimestamp());
+                while (bucket != null) {
+                    Query query = bucketRef(name1, name2, bucket).orderByChild(FirebaseDatabaseManager.TIMESTAMP_TAG);
+                    if (before != null && bucket.equals(MessageBuckets.bucketOf(before.getTimestamp()))) {
+                        query = query.endBefore(before.getTimestamp(), before.getId());
+                    }
+                    List<Message> older = readMessages(Tasks.await(query.limitToLast(limit - page.size()).get()));
+                    older.addAll(page);
+                    page = older;
+                    if (page.size() >= limit) {
+                        break;
+                    }
+                    bucket = previousBucket(indexRef, bucket);
+                }
+                List<Message> result = page;
+                mainHandler.post(() -> callback.onComplete(result, null));
+            } catch (ExecutionException e) {
+                Exception error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                mainHandler.post(() -> callback.onComplete(null, error));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mainHandler.post(() -> callback.onComplete(null, e));
+            } catch (RuntimeException e) {
+                // A message that cannot be decoded, say. The callback is always called.
+                Log.e("FirebaseChatRepository", "Error loading a page: " + e.getMessage());
+                mainHandler.post(() -> callback.onComplete(null, e));
+            }
+        });
+    }
+
+    /**
+     * This is a helper function. It returns the name of the newest bucket in @param indexRef older
+     * than @param bucket, or the newest of all when it is null, or null if there is none.
+     */
+    @Nullable
+    private static String previousBucket(DatabaseReference indexRef, @Nullable String bucket)
+            throws ExecutionException, InterruptedException {
+        Query query = indexRef.orderByKey();
+        if (bucket != null) {
+            query = query.endBefore(bucket);
+        }
+        for (DataSnapshot entry : Tasks.await(query.limitToLast(1).get()).getChildren()) {
+            return entry.getKey();
+        }
+        return null;
+    }
+
+    private DatabaseReference bucketRef(String name1, String name2, String bucket) {
+        return FirebaseDatabaseManager.requireScoped(
+                FirebaseDatabaseManager.getInstance().getBucketReference(name1, name2, bucket));
+    }
+
+    private DatabaseReference bucketIndexRef(String name1, String name2) {
+        return FirebaseDatabaseManager.requireScoped(
+                FirebaseDatabaseManager.getInstance().getBucketIndexReference(name1, name2));
+    }
+
+    static String usernameIndexPath(String name) {
+        return FirebaseDatabaseManager.USERNAME_INDEX_TAG + "/" + normalizeUsername(name) + "/" + name;
+    }
+
+    private static String normalizeUsername(String name) {
+        return name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static List<Message> readMessages(DataSnapshot pageSnapshot) {
+        List<Message> messages = new ArrayList<>((int) pageSnapshot.getChildrenCount());
+        for (DataSnapshot messageSnapshot : pageSnapshot.getChildren()) {
+            Message message = readMessage(messageSnapshot);
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * This is a helper function. It reads a message and makes sure it carries its ID, since
+     * messages written before IDs existed are stored without one.
+     */
+    @Nullable
+    private static Message readMessage(DataSnapshot snapshot) {
+        return ModelCodec.decodeMessage(snapshot.getKey(), snapshot.getValue());
+    }
+
+    /**
+     * This is a helper function. It decodes the result of @param task with @param decoder on the
+     * decode thread, and hands the model or the error to @param callback on the main thread.
+     */
+    private <T> void complete(Task<DataSnapshot> task, Decoder<T> decoder, Callback<T> callback) {
+        task.addOnCompleteListener(done -> {
+            if (done.isSuccessful()) {
+                DataSnapshot snapshot = done.getResult();
+                decode(() -> decoder.decode(snapshot), result -> callback.onComplete(result, null),
+                        error -> callback.onComplete(null, error), null);
+            } else {
+                callback.onComplete(null, done.getException());
+            }
+        });
+    }
+
+    /**
+     * This is a helper function. It hands the outcome of the write @param task to @param callback.
+     * There is nothing to decode, so it stays on the main thread.
+     */
+    private static void complete(Task<Void> task, Callback<Void> callback) {
+        task.addOnCompleteListener(done -> callback.onComplete(null, done.isSuccessful() ? null : done.getException()));
+    }
+
+    /**
+     * This is a helper function. It runs @param work on the decode thread and posts its result to
+     * @param onResult, or what it threw to @param onError, on the main thread. Nothing is posted
+     * once @param cancelled is set.
+     */
+    private <T> void decode(Work<T> work, Consumer<T> onResult, Consumer<Exception> onError,
+                            @Nullable AtomicBoolean cancelled) {
+        decodeExecutor.execute(() -> {
+            if (cancelled != null && cancelled.get()) {
+                return;
+            }
+            Runnable delivery;
+            try {
+                T result = work.run();
+                delivery = () -> onResult.accept(result);
+            } catch (RuntimeException e) {
+                Log.e("FirebaseChatRepository", "Error decoding a snapshot: " + e.getMessage());
+                delivery = () -> onError.accept(e);
+            }
+            Runnable deliver = delivery;
+            mainHandler.post(() -> {
+                if (cancelled == null || !cancelled.get()) {
+                    deliver.run();
+                }
+            });
+        });
+    }
+
+    private interface Decoder<T> {
+        T decode(DataSnapshot snapshot);
+    }
+
+    private interface Work<T> {
+        T run();
+    }
+
+    private interface Consumer<T> {
+        void accept(T value);
+    }
+}
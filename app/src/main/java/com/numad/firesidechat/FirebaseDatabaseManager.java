@@ -2,6 +2,10 @@ package com.numad.firesidechat;
 
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.Query;
+
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * We use a singleton object to gain access to the Firebase Database.
@@ -16,15 +20,49 @@ public class FirebaseDatabaseManager {
     public static final String USERS_TAG = "users";
     public static final String EMAIL_TAG = "email";
     public static final String JWT_TAG = "jwt";
+    // Legacy: every message stored twice, under messageHistory/<a>/<b> and messageHistory/<b>/<a>
     public static final String MESSAGE_HISTORY_TAG = "messageHistory";
     public static final String MESSAGES_TAG = "messagesSent";
+    // Every message stored once, under conversations/<conversationId>/buckets/<day>, see MessageBuckets
+    public static final String CONVERSATIONS_TAG = "conversations";
+    public static final String BUCKETS_TAG = "buckets";
+    // The days a conversation has messages on, as conversations/<conversationId>/bucketIndex/<day> = true
+    public static final String BUCKET_INDEX_TAG = "bucketIndex";
+    // Legacy: every message of a conversation in one node, under conversations/<conversationId>/messages
+    public static final String CONVERSATION_MESSAGES_TAG = "messages";
+    public static final String CONVERSATION_ID_TAG = "conversationId";
+    public static final String NOTIFICATION_TRACKER_TAG = "notificationTracker";
+    public static final String READ_TAG = "read";
+    public static final String COUNT_TAG = "count";
+    public static final String TIMESTAMP_TAG = "timestamp";
+    public static final String MESSAGE_TEXT_TAG = "message";
+    public static final String DELETED_TAG = "deleted";
+    public static final String SUMMARIES_TAG = "conversationSummaries";
+    public static final String PEER_TAG = "peer";
+    public static final String LAST_MESSAGE_TAG = "lastMessage";
+    public static final String LAST_TIMESTAMP_TAG = "lastTimestamp";
+    public static final String UNREAD_COUNT_TAG = "unreadCount";
+    public static final String UNREAD_MESSAGES_TAG = "unreadMessages";
+    public static final String MIGRATIONS_TAG = "migrations";
+    // Under MIGRATIONS_TAG, the migrations that are run once for all users rather than once per user
+    public static final String SHARED_MIGRATIONS_TAG = "_shared";
+    // Lowercased usernames, for searching. Only ever read with bounded prefix queries.
+    public static final String USERNAME_INDEX_TAG = "usernameIndex";
+    // Nodes that hold one child per user or per conversation. They must never be read as a whole.
+    private static final List<String> PARTITIONED_TAGS =
+            Arrays.asList(USERS_TAG, MESSAGE_HISTORY_TAG, SUMMARIES_TAG, CONVERSATIONS_TAG, MIGRATIONS_TAG);
 
     /**
      * The constructor will create a reference to the Firebase Database.
+     * It must be the first code to touch Firebase, since persistence can only be turned on before that.
      * This reference can be accessed via {@link #getDatabaseReference()} getDatabaseReference().
      */
     private FirebaseDatabaseManager() {
-        databaseReference = FirebaseDatabase.getInstance().getReference(REFERENCE_TAG);
+        FirebaseDatabase database = FirebaseDatabase.getInstance();
+        // Firebase keeps what we listen to on disk. Listening again after a restart then only
+        // transfers what changed, and writes made while offline are sent once we are back online.
+        database.setPersistenceEnabled(true);
+        databaseReference = database.getReference(REFERENCE_TAG);
     }
 
     /**
@@ -47,4 +85,46 @@ public class FirebaseDatabaseManager {
     public DatabaseReference getDatabaseReference() {
         return databaseReference;
     }
+
+    /**
+     * This function makes sure @param query does not read the whole database, or the whole of a node
+     * that holds one child per user or conversation such as {@link #CONVERSATIONS_TAG}. Reading one of
+     * those would download the chats of everyone using the app, so we fail straight away instead.
+     * <br><br>
+     * Every read of per-user data should go through this function.
+     */
+    public static <T extends Query> T requireScoped(T query) {
+        DatabaseReference ref = query.getRef();
+        DatabaseReference parent = ref.getParent();
+        boolean isRoot = parent == null || parent.getParent() == null;
+        boolean isPartitionedNode = parent != null && REFERENCE_TAG.equals(parent.getKey())
+                && PARTITIONED_TAGS.contains(ref.getKey());
+        if (isRoot || isPartitionedNode) {
+            throw new IllegalStateException("Refusing to read unscoped node " + ref);
+        }
+        return query;
+    }
+
+    /**
+     * This function returns the reference to the conversation between @param name1 and @param name2.
+     */
+    public DatabaseReference getConversationReference(String name1, String name2) {
+        return databaseReference.child(CONVERSATIONS_TAG).child(ConversationIds.conversationId(name1, name2));
+    }
+
+    /**
+     * This function returns the reference to the messages the conversation between @param name1 and
+     * @param name2 has in @param bucket, a name from {@link MessageBuckets#bucketOf}.
+     */
+    public DatabaseReference getBucketReference(String name1, String name2, String bucket) {
+        return getConversationReference(name1, name2).child(BUCKETS_TAG).child(bucket);
+    }
+
+    /**
+     * This function returns the reference to the index of the buckets the conversation between
+     * @param name1 and @param name2 has messages in.
+     */
+    public DatabaseReference getBucketIndexReference(String name1, String name2) {
+        return getConversationReference(name1, name2).child(BUCKET_INDEX_TAG);
+    }
 }
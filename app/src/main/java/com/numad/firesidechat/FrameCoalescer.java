@@ -0,0 +1,63 @@
+package com.numad.firesidechat;
+
+import android.view.Choreographer;
+
+import androidx.annotation.Nullable;
+
+/**
+ * This class passes values on at most once per display frame.
+ * <br><br>
+ * Values submitted between two frames replace each other, and only the last one is handed to the
+ * {@link Sink} when the next frame starts. A burst of updates, such as a peer pasting many lines or
+ * the chat catching up after being offline, then turns into one update of the screen per frame
+ * rather than one per change.
+ * <br><br>
+ * It is only used from the main thread.
+ */
+public class FrameCoalescer<T> implements Choreographer.FrameCallback {
+    private final Sink<T> sink;
+    @Nullable
+    private T pending;
+    private boolean scheduled;
+
+    public FrameCoalescer(Sink<T> sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * This function hands @param value to the sink at the start of the next frame, unless another
+     * value is submitted before then.
+     */
+    public void submit(T value) {
+        pending = value;
+        if (!scheduled) {
+            scheduled = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    /**
+     * This function drops the value waiting for the next frame, if there is one.
+     */
+    public void cancel() {
+        if (scheduled) {
+            Choreographer.getInstance().removeFrameCallback(this);
+            scheduled = false;
+        }
+        pending = null;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        scheduled = false;
+        T value = pending;
+        pending = null;
+        if (value != null) {
+            sink.accept(value);
+        }
+    }
+
+    public interface Sink<T> {
+        void accept(T value);
+    }
+}
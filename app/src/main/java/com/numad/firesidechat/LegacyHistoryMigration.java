@@ -0,0 +1,266 @@
+package com.numad.firesidechat;
+
+import android.util.Log;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.Query;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * This class moves chats from the old layouts to the day buckets of the shared conversation nodes.
+ * The oldest layout stored every message twice, under messageHistory/<a>/<b> and
+ * messageHistory/<b>/<a>. After that, every message of a conversation was stored in one node,
+ * conversations/<id>/messages.
+ * <br><br>
+ * It runs once per user, on a background thread. Only the old chats of that user are looked at,
+ * one at a time, so at most one old chat, both of its copies, is held in memory, and its messages are
+ * written in batches of {@link #BATCH_SIZE}. The two copies do not always hold the same messages, so
+ * they are merged, and a message found in both is written once. Each message keeps its key unless
+ * another message of the other copy has it, so running the migration twice, or for both users of a
+ * chat at the same time, writes the same data again rather than duplicating it.
+ * <br><br>
+ * Once a chat has been copied, its old copies are deleted.
+ * <br><br>
+ * Users who signed up before the username index existed are added to it once, for all users, by
+ * walking through the users in batches of {@link #BATCH_SIZE}.
+ */
+public final class LegacyHistoryMigration {
+    public static final int BATCH_SIZE = 200;
+
+    private static final Executor executor = Executors.newSingleThreadExecutor();
+
+    private LegacyHistoryMigration() {
+    }
+
+    /**
+     * This function migrates the chats of @param username, and fills in the username index, unless
+     * that has been done already.
+     */
+    public static void runOnce(DatabaseReference rootRef, String username) {
+        DatabaseReference migrationsRef = FirebaseDatabaseManager.requireScoped(
+                rootRef.child(FirebaseDatabaseManager.MIGRATIONS_TAG).child(username));
+        DatabaseReference conversationsDoneRef = migrationsRef.child(FirebaseDatabaseManager.CONVERSATIONS_TAG);
+        DatabaseReference bucketsDoneRef = migrationsRef.child(FirebaseDatabaseManager.BUCKETS_TAG);
+        DatabaseReference usernameIndexDoneRef = FirebaseDatabaseManager.requireScoped(
+                rootRef.child(FirebaseDatabaseManager.MIGRATIONS_TAG).child(FirebaseDatabaseManager.SHARED_MIGRATIONS_TAG))
+                .child(FirebaseDatabaseManager.USERNAME_INDEX_TAG);
+        executor.execute(() -> {
+            try {
+                if (!isDone(conversationsDoneRef)) {
+                    migrateUser(rootRef, username);
+                    Tasks.await(conversationsDoneRef.setValue(true));
+                }
+                if (!isDone(bucketsDoneRef)) {
+                    migrateToBuckets(rootRef, username);
+                    Tasks.await(bucketsDoneRef.setValue(true));
+                }
+                if (!isDone(usernameIndexDoneRef)) {
+                    backfillUsernameIndex(rootRef);
+                    Tasks.await(usernameIndexDoneRef.setValue(true));
+                }
+            } catch (ExecutionException e) {
+                Log.e("LegacyHistoryMigration", "Error migrating chats of " + username + ": " + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    private static boolean isDone(DatabaseReference doneRef) throws ExecutionException, InterruptedException {
+        return Boolean.TRUE.equals(Tasks.await(doneRef.get()).getValue());
+    }
+
+    /**
+     * This is a helper function. It walks through the old chats kept under the node of @param username,
+     * one at a time in key order, and migrates each of them. Users who never chatted with
+     * @param username are not read at all.
+     */
+    private static void migrateUser(DatabaseReference rootRef, String username)
+            throws ExecutionException, InterruptedException {
+        DatabaseReference ownerHistoryRef = FirebaseDatabaseManager.requireScoped(
+                rootRef.child(FirebaseDatabaseManager.MESSAGE_HISTORY_TAG).child(username));
+        String cursor = null;
+        while (true) {
+            Query query = ownerHistoryRef.orderByKey().limitToFirst(1);
+            if (cursor != null) {
+                query = query.startAfter(cursor);
+            }
+            DataSnapshot chatsSnapshot = Tasks.await(query.get());
+            if (!chatsSnapshot.hasChildren()) {
+                return;
+            }
+            for (DataSnapshot chatSnapshot : chatsSnapshot.getChildren()) {
+                cursor = chatSnapshot.getKey();
+                if (!username.equals(cursor)) {
+                    migrateChat(rootRef, username, cursor, chatSnapshot);
+                }
+            }
+        }
+    }
+
+    /**
+     * This is a helper function. It merges @param ownerCopy, the old copy @param owner kept of their
+     * chat with @param peer, with the copy @param peer kept, and copies the result into the shared
+     * conversation, a batch at a time. Then it writes both summaries and deletes both old copies in
+     * one update.
+     */
+    private static void migrateChat(DatabaseReference rootRef, String owner, String peer, DataSnapshot ownerCopy)
+            throws ExecutionException, InterruptedException {
+        DataSnapshot peerCopy = Tasks.await(FirebaseDatabaseManager.requireScoped(
+                rootRef.child(FirebaseDatabaseManager.MESSAGE_HISTORY_TAG).child(peer).child(owner)).get());
+        NotificationTracker ownerTracker = ModelCodec.decodeNotificationTracker(
+                ownerCopy.child(FirebaseDatabaseManager.NOTIFICATION_TRACKER_TAG).getValue());
+        NotificationTracker peerTracker = ModelCodec.decodeNotificationTracker(
+                peerCopy.child(FirebaseDatabaseManager.NOTIFICATION_TRACKER_TAG).getValue());
+
+        // The copy of the user whose name comes first keeps its keys, whoever runs the migration
+        Map<String, Message> merged = new LinkedHashMap<>();
+        Set<String> seen = new HashSet<>();
+        if (owner.compareTo(peer) < 0) {
+            mergeCopy(ownerCopy, owner, merged, seen);
+            mergeCopy(peerCopy, peer, merged, seen);
+        } else {
+            mergeCopy(peerCopy, peer, merged, seen);
+            mergeCopy(ownerCopy, owner, merged, seen);
+        }
+
+        Message latest = new Message();
+        Map<String, Object> batch = new HashMap<>();
+        for (Message message : merged.values()) {
+            putBucketed(batch, owner, peer, message);
+            if (message.getTimestamp() >= latest.getTimestamp()) {
+                latest = message;
+            }
+            // Every message is two entries, itself and its bucket in the index
+            if (batch.size() >= BATCH_SIZE * 2) {
+                Tasks.await(rootRef.updateChildren(batch));
+                batch = new HashMap<>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            Tasks.await(rootRef.updateChildren(batch));
+        }
+
+        if (merged.isEmpty() && ownerTracker == null && peerTracker == null) {
+            // The two users never had a chat
+            return;
+        }
+
+        Map<String, Object> updates = new HashMap<>();
+        putSummary(updates, owner, peer, latest, ownerTracker);
+        putSummary(updates, peer, owner, latest, peerTracker);
+        updates.put(FirebaseDatabaseManager.MESSAGE_HISTORY_TAG + "/" + owner + "/" + peer, null);
+        updates.put(FirebaseDatabaseManager.MESSAGE_HISTORY_TAG + "/" + peer + "/" + owner, null);
+        Tasks.await(rootRef.updateChildren(updates));
+    }
+
+    /**
+     * This is a helper function. It adds the messages of @param copy, the old copy @param copyOwner
+     * kept of a chat, to @param merged by key. A message with the same sender, time and text as one
+     * in @param seen is there already and is skipped. A message whose key is taken by a different one,
+     * since the old keys were list positions that need not match between the copies, gets a new key
+     * made from its own and @param copyOwner.
+     */
+    private static void mergeCopy(DataSnapshot copy, String copyOwner, Map<String, Message> merged, Set<String> seen) {
+        for (DataSnapshot messageSnapshot : copy.child(FirebaseDatabaseManager.MESSAGES_TAG).getChildren()) {
+            Message message = ModelCodec.decodeMessage(messageSnapshot.getKey(), messageSnapshot.getValue());
+            if (message == null
+                    || !seen.add(message.getSender() + "\u0000" + message.getTimestamp() + "\u0000" + message.getMessage())) {
+                continue;
+            }
+            if (merged.containsKey(message.getId())) {
+                message = new Message(message.getId() + "-" + copyOwner, message.getSender(), message.getMessage(),
+                        message.getTimestamp(), message.getDeleted());
+            }
+            merged.put(message.getId(), message);
+        }
+    }
+
+    /**
+     * This is a helper function. It moves the messages of every chat @param username has a summary
+     * of out of the single conversation node and into day buckets, a batch at a time. Each batch is
+     * written to its buckets and deleted from the old node in the same update, so the next batch is
+     * always the first of what is left.
+     */
+    private static void migrateToBuckets(DatabaseReference rootRef, String username)
+            throws ExecutionException, InterruptedException {
+        DataSnapshot summariesSnapshot = Tasks.await(FirebaseDatabaseManager.requireScoped(
+                rootRef.child(FirebaseDatabaseManager.SUMMARIES_TAG).child(username)).get());
+        for (DataSnapshot summarySnapshot : summariesSnapshot.getChildren()) {
+            String peer = summarySnapshot.getKey();
+            String oldMessagesPath = FirebaseDatabaseManager.CONVERSATIONS_TAG + "/"
+                    + ConversationIds.conversationId(username, peer) + "/" + FirebaseDatabaseManager.CONVERSATION_MESSAGES_TAG;
+            DatabaseReference oldMessagesRef = rootRef.child(oldMessagesPath);
+            while (true) {
+                DataSnapshot batchSnapshot = Tasks.await(oldMessagesRef.orderByKey().limitToFirst(BATCH_SIZE).get());
+                Map<String, Object> batch = new HashMap<>();
+                for (DataSnapshot messageSnapshot : batchSnapshot.getChildren()) {
+                    Message message = ModelCodec.decodeMessage(messageSnapshot.getKey(), messageSnapshot.getValue());
+                    if (message != null) {
+                        putBucketed(batch, username, peer, message);
+                    }
+                    batch.put(oldMessagesPath + "/" + messageSnapshot.getKey(), null);
+                }
+                if (!batch.isEmpty()) {
+                    Tasks.await(rootRef.updateChildren(batch));
+                }
+                if (batchSnapshot.getChildrenCount() < BATCH_SIZE) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * This is a helper function. It walks through every user in batches and lists each of them in
+     * the username index, one update per batch. Entries that are there already are written again
+     * as they are, so it does no harm if several users run this at the same time.
+     */
+    private static void backfillUsernameIndex(DatabaseReference rootRef)
+            throws ExecutionException, InterruptedException {
+        String cursor = null;
+        while (true) {
+            Query query = rootRef.child(FirebaseDatabaseManager.USERS_TAG).orderByKey().limitToFirst(BATCH_SIZE);
+            if (cursor != null) {
+                query = query.startAfter(cursor);
+            }
+            DataSnapshot usersSnapshot = Tasks.await(query.get());
+            Map<String, Object> batch = new HashMap<>();
+            for (DataSnapshot userSnapshot : usersSnapshot.getChildren()) {
+                cursor = userSnapshot.getKey();
+                batch.put(FirebaseChatRepository.usernameIndexPath(cursor), true);
+            }
+            if (!batch.isEmpty()) {
+                Tasks.await(rootRef.updateChildren(batch));
+            }
+            if (usersSnapshot.getChildrenCount() < BATCH_SIZE) {
+                return;
+            }
+        }
+    }
+
+    private static void putBucketed(Map<String, Object> updates, String name1, String name2, Message message) {
+        updates.put(FanOutWriter.messagePath(name1, name2, message), ModelCodec.encodeMessage(message));
+        updates.put(FanOutWriter.bucketIndexPath(name1, name2, message), true);
+    }
+
+    private static void putSummary(Map<String, Object> updates, String owner, String peer,
+                                   Message latest, NotificationTracker tracker) {
+        String summaryPath = FirebaseDatabaseManager.SUMMARIES_TAG + "/" + owner + "/" + peer + "/";
+        for (Map.Entry<String, Object> field : ConversationSummaries.previewFields(owner, peer, latest).entrySet()) {
+            updates.put(summaryPath + field.getKey(), field.getValue());
+        }
+        int unreadCount = tracker == null || tracker.isRead() ? 0 : tracker.getCount();
+        updates.put(summaryPath + FirebaseDatabaseManager.UNREAD_COUNT_TAG, unreadCount);
+    }
+}
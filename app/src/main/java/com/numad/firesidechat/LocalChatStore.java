@@ -0,0 +1,465 @@
+package com.numad.firesidechat;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * This class keeps a copy of the chats on the device, in an SQLite database.
+ * <br><br>
+ * The screens read from here first, so they can show the last known state straight away, even
+ * without a connection. Whatever comes in from Firebase is written back here in the background.
+ * It also holds the {@link Outbox}, the messages that have been sent on this device but have not
+ * reached Firebase yet.
+ * <br><br>
+ * Like {@link FirebaseDatabaseManager}, there is only one instance. All reads and writes happen on a
+ * single background thread; the async functions hand their results back on the main thread.
+ */
+public class LocalChatStore extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME = "fireside_chat.db";
+    private static final int DATABASE_VERSION = 3;
+
+    private static final String MESSAGES_TABLE = "messages";
+    private static final String SUMMARIES_TABLE = "summaries";
+    private static final String OUTBOX_TABLE = "outbox";
+    private static final String FAILED_OUTBOX_TABLE = "failed_outbox";
+    private static final String ID_COLUMN = "id";
+    private static final String CONVERSATION_ID_COLUMN = "conversation_id";
+    private static final String SENDER_COLUMN = "sender";
+    private static final String MESSAGE_COLUMN = "message";
+    private static final String TIMESTAMP_COLUMN = "timestamp";
+    private static final String OWNER_COLUMN = "owner";
+    private static final String PEER_COLUMN = "peer";
+    private static final String LAST_MESSAGE_COLUMN = "last_message";
+    private static final String LAST_TIMESTAMP_COLUMN = "last_timestamp";
+    private static final String UNREAD_COUNT_COLUMN = "unread_count";
+    private static final String RECIPIENT_COLUMN = "recipient";
+
+    private static LocalChatStore instance;
+    private final Executor diskExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private LocalChatStore(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    public static synchronized LocalChatStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new LocalChatStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + MESSAGES_TABLE + " ("
+                + ID_COLUMN + " TEXT PRIMARY KEY, "
+                + CONVERSATION_ID_COLUMN + " TEXT NOT NULL, "
+                + SENDER_COLUMN + " TEXT NOT NULL, "
+                + MESSAGE_COLUMN + " TEXT NOT NULL, "
+                + TIMESTAMP_COLUMN + " INTEGER NOT NULL)");
+        // The chat screen always asks for the latest messages of one conversation
+        db.execSQL("CREATE INDEX messages_by_conversation ON " + MESSAGES_TABLE
+                + " (" + CONVERSATION_ID_COLUMN + ", " + TIMESTAMP_COLUMN + ", " + ID_COLUMN + ")");
+        db.execSQL("CREATE TABLE " + SUMMARIES_TABLE + " ("
+                + OWNER_COLUMN + " TEXT NOT NULL, "
+                + PEER_COLUMN + " TEXT NOT NULL, "
+                + CONVERSATION_ID_COLUMN + " TEXT NOT NULL, "
+                + LAST_MESSAGE_COLUMN + " TEXT NOT NULL, "
+                + LAST_TIMESTAMP_COLUMN + " INTEGER NOT NULL, "
+                + UNREAD_COUNT_COLUMN + " INTEGER NOT NULL, "
+                + "PRIMARY KEY (" + OWNER_COLUMN + ", " + PEER_COLUMN + "))");
+        createOutboxTable(db, OUTBOX_TABLE);
+        createOutboxTable(db, FAILED_OUTBOX_TABLE);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            createOutboxTable(db, OUTBOX_TABLE);
+        }
+        if (oldVersion < 3) {
+            createOutboxTable(db, FAILED_OUTBOX_TABLE);
+        }
+    }
+
+    /**
+     * This is a helper function. The outbox holds messages that have not reached Firebase yet, so
+     * unlike the other tables it is not a copy of anything and must never be rebuilt. Messages
+     * Firebase refused are moved to a second table of the same shape, @param table, so they are
+     * not lost either.
+     */
+    private static void createOutboxTable(SQLiteDatabase db, String table) {
+        db.execSQL("CREATE TABLE " + table + " ("
+                + ID_COLUMN + " TEXT PRIMARY KEY, "
+                + SENDER_COLUMN + " TEXT NOT NULL, "
+                + RECIPIENT_COLUMN + " TEXT NOT NULL, "
+                + CONVERSATION_ID_COLUMN + " TEXT NOT NULL, "
+                + MESSAGE_COLUMN + " TEXT NOT NULL, "
+                + TIMESTAMP_COLUMN + " INTEGER NOT NULL)");
+    }
+
+    /**
+     * This function reads the latest @param limit messages of @param conversationId, oldest first,
+     * and hands them to @param callback on the main thread.
+     */
+    public void loadLatestMessages(String conversationId, int limit, Callback<List<Message>> callback) {
+        diskExecutor.execute(() -> {
+            List<Message> messages = latestMessages(conversationId, limit);
+            mainHandler.post(() -> callback.onResult(messages));
+        });
+    }
+
+    /**
+     * This function reads up to @param limit messages of @param conversationId right before
+     * @param before, oldest first, and hands them to @param callback on the main thread.
+     */
+    public void loadMessagesBefore(String conversationId, Message before, int limit, Callback<List<Message>> callback) {
+        diskExecutor.execute(() -> {
+            List<Message> messages = messagesBefore(conversationId, before, limit);
+            mainHandler.post(() -> callback.onResult(messages));
+        });
+    }
+
+    /**
+     * This function reads up to @param limit messages of @param conversationId right after
+     * @param after, oldest first, and hands them to @param callback on the main thread.
+     */
+    public void loadMessagesAfter(String conversationId, Message after, int limit, Callback<List<Message>> callback) {
+        diskExecutor.execute(() -> {
+            List<Message> messages = messagesAfter(conversationId, after, limit);
+            mainHandler.post(() -> callback.onResult(messages));
+        });
+    }
+
+    /**
+     * This function reads the summaries of @param owner and hands them to @param callback on the
+     * main thread, keyed by peer.
+     */
+    public void loadSummaries(String owner, Callback<HashMap<String, ConversationSummary>> callback) {
+        diskExecutor.execute(() -> {
+            HashMap<String, ConversationSummary> summaries = summaries(owner);
+            mainHandler.post(() -> callback.onResult(summaries));
+        });
+    }
+
+    /**
+     * This function stores @param message, or replaces the stored copy, in the background.
+     */
+    public void putMessageAsync(String conversationId, Message message) {
+        diskExecutor.execute(() -> putMessages(conversationId, Collections.singletonList(message)));
+    }
+
+    /**
+     * This function stores @param messages, or replaces the stored copies, in the background.
+     */
+    public void putMessagesAsync(String conversationId, Collection<Message> messages) {
+        diskExecutor.execute(() -> putMessages(conversationId, messages));
+    }
+
+    /**
+     * This function replaces the stored messages of @param conversationId from @param from up to, but
+     * not including, @param before with @param messages, in the background. A null @param from means
+     * from the start of the chat, and a null @param before means up to its end. Messages that were
+     * deleted elsewhere are dropped from the device this way.
+     */
+    public void replaceMessagesAsync(String conversationId, @Nullable Message from, @Nullable Message before,
+                                     Collection<Message> messages) {
+        diskExecutor.execute(() -> replaceMessages(conversationId, from, before, messages));
+    }
+
+    /**
+     * This function removes the message with the ID @param id in the background.
+     */
+    public void removeMessageAsync(String id) {
+        diskExecutor.execute(() -> getWritableDatabase().delete(MESSAGES_TABLE, ID_COLUMN + " = ?", new String[]{id}));
+    }
+
+    /**
+     * This function replaces all the summaries of @param owner in the background.
+     */
+    public void replaceSummariesAsync(String owner, HashMap<String, ConversationSummary> summaries) {
+        diskExecutor.execute(() -> replaceSummaries(owner, summaries));
+    }
+
+    /**
+     * This function adds @param entry to the outbox and calls @param onStored on the main thread
+     * once it is safely on disk.
+     */
+    public void enqueueOutboxAsync(OutboxEntry entry, Runnable onStored) {
+        diskExecutor.execute(() -> {
+            Message message = entry.getMessage();
+            ContentValues values = new ContentValues();
+            values.put(ID_COLUMN, message.getId());
+            values.put(SENDER_COLUMN, message.getSender());
+            values.put(RECIPIENT_COLUMN, entry.getRecipient());
+            values.put(CONVERSATION_ID_COLUMN, ConversationIds.conversationId(message.getSender(), entry.getRecipient()));
+            values.put(MESSAGE_COLUMN, message.getMessage());
+            values.put(TIMESTAMP_COLUMN, message.getTimestamp());
+            getWritableDatabase().insertWithOnConflict(OUTBOX_TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            mainHandler.post(onStored);
+        });
+    }
+
+    /**
+     * This function reads the oldest @param limit entries of the outbox, oldest first, and hands
+     * them to @param callback on the main thread.
+     */
+    public void loadOutbox(int limit, Callback<List<OutboxEntry>> callback) {
+        diskExecutor.execute(() -> {
+            List<OutboxEntry> entries = outbox(null, limit);
+            mainHandler.post(() -> callback.onResult(entries));
+        });
+    }
+
+    /**
+     * This function reads every entry of the outbox that belongs to @param conversationId, oldest
+     * first, and hands them to @param callback on the main thread.
+     */
+    public void loadOutbox(String conversationId, Callback<List<OutboxEntry>> callback) {
+        diskExecutor.execute(() -> {
+            List<OutboxEntry> entries = outbox(conversationId, -1);
+            mainHandler.post(() -> callback.onResult(entries));
+        });
+    }
+
+    /**
+     * This function removes the outbox entries with the IDs in @param ids once they have been sent.
+     * The messages are moved into the messages table in the same transaction, so they never go
+     * missing from the device in between.
+     */
+    public void removeOutboxAsync(Collection<String> ids) {
+        diskExecutor.execute(() -> {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (String id : ids) {
+                    db.execSQL("INSERT OR REPLACE INTO " + MESSAGES_TABLE
+                                    + " SELECT " + ID_COLUMN + ", " + CONVERSATION_ID_COLUMN + ", " + SENDER_COLUMN + ", "
+                                    + MESSAGE_COLUMN + ", " + TIMESTAMP_COLUMN
+                                    + " FROM " + OUTBOX_TABLE + " WHERE " + ID_COLUMN + " = ?",
+                            new String[]{id});
+                    db.delete(OUTBOX_TABLE, ID_COLUMN + " = ?", new String[]{id});
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        });
+    }
+
+    /**
+     * This function moves the outbox entries with the IDs in @param ids aside once Firebase has
+     * refused them, so they are no longer sent but are still kept on the device.
+     */
+    public void failOutboxAsync(Collection<String> ids) {
+        diskExecutor.execute(() -> {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (String id : ids) {
+                    db.execSQL("INSERT OR REPLACE INTO " + FAILED_OUTBOX_TABLE
+                                    + " SELECT * FROM " + OUTBOX_TABLE + " WHERE " + ID_COLUMN + " = ?",
+                            new String[]{id});
+                    db.delete(OUTBOX_TABLE, ID_COLUMN + " = ?", new String[]{id});
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        });
+    }
+
+    /**
+     * This function hands the number of messages still waiting in the outbox to @param callback on
+     * the main thread.
+     */
+    public void countOutbox(Callback<Integer> callback) {
+        diskExecutor.execute(() -> {
+            int count = (int) DatabaseUtils.queryNumEntries(getReadableDatabase(), OUTBOX_TABLE);
+            mainHandler.post(() -> callback.onResult(count));
+        });
+    }
+
+    /**
+     * This function clears everything we have stored. It is called on log out.
+     */
+    public void clearAsync() {
+        diskExecutor.execute(() -> {
+            SQLiteDatabase db = getWritableDatabase();
+            db.delete(MESSAGES_TABLE, null, null);
+            db.delete(SUMMARIES_TABLE, null, null);
+            db.delete(OUTBOX_TABLE, null, null);
+            db.delete(FAILED_OUTBOX_TABLE, null, null);
+        });
+    }
+
+    List<Message> latestMessages(String conversationId, int limit) {
+        List<Message> messages = queryMessages(CONVERSATION_ID_COLUMN + " = ?", new String[]{conversationId},
+                TIMESTAMP_COLUMN + " DESC, " + ID_COLUMN + " DESC", limit);
+        Collections.reverse(messages);
+        return messages;
+    }
+
+    List<Message> messagesBefore(String conversationId, Message before, int limit) {
+        String timestamp = String.valueOf(before.getTimestamp());
+        List<Message> messages = queryMessages(CONVERSATION_ID_COLUMN + " = ? AND (" + TIMESTAMP_COLUMN + " < ? OR ("
+                        + TIMESTAMP_COLUMN + " = ? AND " + ID_COLUMN + " < ?))",
+                new String[]{conversationId, timestamp, timestamp, before.getId()},
+                TIMESTAMP_COLUMN + " DESC, " + ID_COLUMN + " DESC", limit);
+        Collections.reverse(messages);
+        return messages;
+    }
+
+    List<Message> messagesAfter(String conversationId, Message after, int limit) {
+        String timestamp = String.valueOf(after.getTimestamp());
+        return queryMessages(CONVERSATION_ID_COLUMN + " = ? AND (" + TIMESTAMP_COLUMN + " > ? OR ("
+                        + TIMESTAMP_COLUMN + " = ? AND " + ID_COLUMN + " > ?))",
+                new String[]{conversationId, timestamp, timestamp, after.getId()},
+                TIMESTAMP_COLUMN + ", " + ID_COLUMN, limit);
+    }
+
+    /**
+     * This is a helper function. It reads up to @param limit messages matching @param selection, in
+     * the order @param orderBy. The index on the conversation, timestamp and ID serves all of them.
+     */
+    private List<Message> queryMessages(String selection, String[] selectionArgs, String orderBy, int limit) {
+        List<Message> messages = new ArrayList<>(limit);
+        try (Cursor cursor = getReadableDatabase().query(MESSAGES_TABLE,
+                new String[]{ID_COLUMN, SENDER_COLUMN, MESSAGE_COLUMN, TIMESTAMP_COLUMN},
+                selection, selectionArgs,
+                null, null,
+                orderBy,
+                String.valueOf(limit))) {
+            while (cursor.moveToNext()) {
+                messages.add(new Message(cursor.getString(0), cursor.getString(1),
+                        cursor.getString(2), cursor.getLong(3)));
+            }
+        }
+        return messages;
+    }
+
+    void putMessages(String conversationId, Collection<Message> messages) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (Message message : messages) {
+                values.clear();
+                values.put(ID_COLUMN, message.getId());
+                values.put(CONVERSATION_ID_COLUMN, conversationId);
+                values.put(SENDER_COLUMN, message.getSender());
+                values.put(MESSAGE_COLUMN, message.getMessage());
+                values.put(TIMESTAMP_COLUMN, message.getTimestamp());
+                db.insertWithOnConflict(MESSAGES_TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    void replaceMessages(String conversationId, @Nullable Message from, @Nullable Message before,
+                         Collection<Message> messages) {
+        StringBuilder selection = new StringBuilder(CONVERSATION_ID_COLUMN + " = ?");
+        List<String> selectionArgs = new ArrayList<>();
+        selectionArgs.add(conversationId);
+        if (from != null) {
+            String timestamp = String.valueOf(from.getTimestamp());
+            selection.append(" AND (" + TIMESTAMP_COLUMN + " > ? OR (" + TIMESTAMP_COLUMN + " = ? AND " + ID_COLUMN + " >= ?))");
+            selectionArgs.add(timestamp);
+            selectionArgs.add(timestamp);
+            selectionArgs.add(from.getId());
+        }
+        if (before != null) {
+            String timestamp = String.valueOf(before.getTimestamp());
+            selection.append(" AND (" + TIMESTAMP_COLUMN + " < ? OR (" + TIMESTAMP_COLUMN + " = ? AND " + ID_COLUMN + " < ?))");
+            selectionArgs.add(timestamp);
+            selectionArgs.add(timestamp);
+            selectionArgs.add(before.getId());
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(MESSAGES_TABLE, selection.toString(), selectionArgs.toArray(new String[0]));
+            putMessages(conversationId, messages);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    HashMap<String, ConversationSummary> summaries(String owner) {
+        HashMap<String, ConversationSummary> summaries = new HashMap<>();
+        try (Cursor cursor = getReadableDatabase().query(SUMMARIES_TABLE,
+                new String[]{PEER_COLUMN, LAST_MESSAGE_COLUMN, LAST_TIMESTAMP_COLUMN, UNREAD_COUNT_COLUMN, CONVERSATION_ID_COLUMN},
+                OWNER_COLUMN + " = ?", new String[]{owner},
+                null, null, null)) {
+            while (cursor.moveToNext()) {
+                summaries.put(cursor.getString(0), new ConversationSummary(cursor.getString(0),
+                        cursor.getString(1), cursor.getLong(2), cursor.getInt(3), cursor.getString(4)));
+            }
+        }
+        return summaries;
+    }
+
+    void replaceSummaries(String owner, HashMap<String, ConversationSummary> summaries) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(SUMMARIES_TABLE, OWNER_COLUMN + " = ?", new String[]{owner});
+            ContentValues values = new ContentValues();
+            for (Map.Entry<String, ConversationSummary> entry : summaries.entrySet()) {
+                ConversationSummary summary = entry.getValue();
+                values.clear();
+                values.put(OWNER_COLUMN, owner);
+                values.put(PEER_COLUMN, entry.getKey());
+                values.put(CONVERSATION_ID_COLUMN, summary.getConversationId());
+                values.put(LAST_MESSAGE_COLUMN, summary.getLastMessage());
+                values.put(LAST_TIMESTAMP_COLUMN, summary.getLastTimestamp());
+                values.put(UNREAD_COUNT_COLUMN, summary.getUnreadCount());
+                db.insert(SUMMARIES_TABLE, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    List<OutboxEntry> outbox(@Nullable String conversationId, int limit) {
+        List<OutboxEntry> entries = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().query(OUTBOX_TABLE,
+                new String[]{ID_COLUMN, SENDER_COLUMN, RECIPIENT_COLUMN, MESSAGE_COLUMN, TIMESTAMP_COLUMN},
+                conversationId == null ? null : CONVERSATION_ID_COLUMN + " = ?",
+                conversationId == null ? null : new String[]{conversationId},
+                null, null,
+                TIMESTAMP_COLUMN + ", " + ID_COLUMN,
+                limit < 0 ? null : String.valueOf(limit))) {
+            while (cursor.moveToNext()) {
+                entries.add(new OutboxEntry(cursor.getString(2), new Message(cursor.getString(0),
+                        cursor.getString(1), cursor.getString(3), cursor.getLong(4))));
+            }
+        }
+        return entries;
+    }
+
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+}
@@ -14,28 +14,23 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
 
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseReference;
-import com.google.firebase.database.GenericTypeIndicator;
 import com.numad.firesidechat.databinding.FragmentLoginBinding;
 
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * This fragment is used to log the user in.
  * The user can enter their name and email and will be logged in.
- * The database is queried to check if a users object exists. In case it does not,
- * a users object is created, the user is signed up, information stored within the users object — all
+ * The database is queried for the record of a user with that name. In case there is none,
+ * a user record is created, the user is signed up, information stored within the users object — all
  * of it being stored in the Firebase database.
- * <br><br>However, if a users object already exists, it is queried to check if a user with the same
- * information exists, and if it does, the user is logged in. If it does not, a new user is created.
+ * <br><br>However, if a user with the same information exists, the user is logged in with it. If the
+ * email is different, the user record is updated.
  */
 public class LoginFragment extends Fragment {
     private FragmentLoginBinding binding;
     private SharedPreferences sharedPreferences;
-    private FirebaseDatabaseManager databaseManager;
+    private ChatRepository repository;
     public static final String SHARED_PREFS_NAME = "FiresidePrefs";
     public static final String NAME_PREF_NAME = "username";
     public static final String JWT_PREF_NAME = "jwt_token";
@@ -56,11 +51,11 @@ public class LoginFragment extends Fragment {
     }
 
     /**
-     * Function to initialize the shared preferences and database manager.
+     * Function to initialize the shared preferences and the repository.
      */
     private void init() {
         sharedPreferences = requireActivity().getSharedPreferences(SHARED_PREFS_NAME, Context.MODE_PRIVATE);
-        databaseManager = FirebaseDatabaseManager.getInstance();
+        repository = ChatRepositories.getInstance();
     }
 
     /**
@@ -80,97 +75,63 @@ public class LoginFragment extends Fragment {
                 return;
             }
 
-            String jwt = generateMockJWT(name, email);
-            validateUserAndLogin(name, email, jwt);
+            validateUserAndLogin(name, email);
         });
     }
 
     /**
      * This function is used to validate the user and login.
-     * It fetches a reference to the "users" child of the database.
-     * If the users child does not exist, it creates it.
+     * It reads the one user record stored under the name, so logging in costs the same no matter
+     * how many users there are.
      * <br><br>
-     * Within that, it searches for users with the given name.
-     * When it identifies a user with the same name, it logs the user in and stores their JWT.
+     * When the user exists with the same email, they are logged in with the token they already
+     * have, and nothing is written.
      * <br><br>
-     * In case the user does not exist or the email is different, a new user is created and logged in.
+     * In case the user does not exist or the email is different, a new token is generated and the
+     * user record is written, along with their entry in the username index, before logging them in.
      */
-    private void validateUserAndLogin(String name, String email, String jwt) {
-        DatabaseReference dbRef = databaseManager.getDatabaseReference().child(FirebaseDatabaseManager.USERS_TAG);
-
-        // Verify if the database has a users child.
-        dbRef.get().addOnCompleteListener(task -> {
-            if (task.isSuccessful()) {
-                DataSnapshot usersSnapshot = task.getResult();
-                Map<String, Object> userData = new HashMap<>();
-                userData.put(FirebaseDatabaseManager.EMAIL_TAG, email);
-                userData.put(FirebaseDatabaseManager.JWT_TAG, jwt);
-
-                if (!usersSnapshot.exists()) {
-                    // Create Users child and sign user up.
-
-                    dbRef.child(name).setValue(userData)
-                            .addOnSuccessListener(aVoid -> {
-                                Toast.makeText(getContext(), getString(R.string.signup_success), Toast.LENGTH_SHORT).show();
-                                sharedPreferences.edit().putString(NAME_PREF_NAME, name).apply();
-                                sharedPreferences.edit().putString(JWT_PREF_NAME, jwt).apply();
-                                moveToDashboard();
-                            })
-                            .addOnFailureListener(e -> {
-                                Log.e("Login", "Error logging in: " + e.getMessage());
-                                Toast.makeText(getContext(), getString(R.string.login_failure), Toast.LENGTH_SHORT).show();
-                            });
-                } else {
-                    // The child named users exists in the database.
-                    // We can proceed with the login process.
-                    DataSnapshot dataSnapshot = task.getResult();
-                    if (dataSnapshot.exists()) {
-                        GenericTypeIndicator<HashMap<String, HashMap<String, String>>> t = new GenericTypeIndicator<>() {
-                        };
-                        HashMap<String, HashMap<String, String>> usersData = dataSnapshot.getValue(t);
-                        if (usersData != null && usersData.containsKey(name)) {
-                            // User exists
-                            dbRef.child(name).setValue(userData)
-                                    .addOnSuccessListener(aVoid -> {
-                                        Toast.makeText(getContext(), getString(R.string.login_success), Toast.LENGTH_SHORT).show();
-                                        sharedPreferences.edit().putString(NAME_PREF_NAME, name).apply();
-                                        sharedPreferences.edit().putString(JWT_PREF_NAME, jwt).apply();
-                                        moveToDashboard();
-                                    })
-                                    .addOnFailureListener(e -> {
-                                        Log.e("Login", "Error logging in: " + e.getMessage());
-                                        Toast.makeText(getContext(), getString(R.string.login_failure), Toast.LENGTH_SHORT).show();
-                                    });
-                        } else {
-                            // If the user does not exist or a user exists with the same name but email is different,
-                            // we could create a new user with the same name but different email.
-
-                            dbRef.child(name).setValue(userData)
-                                    .addOnCompleteListener(createTask -> {
-                                        if (createTask.isSuccessful()) {
-                                            Toast.makeText(getContext(), getString(R.string.signup_success), Toast.LENGTH_SHORT).show();
-                                            sharedPreferences.edit().putString(NAME_PREF_NAME, name).apply();
-                                            sharedPreferences.edit().putString(JWT_PREF_NAME, jwt).apply();
-                                            moveToDashboard();
-                                        } else {
-                                            Log.e("Login", "Error creating user: " + createTask.getException());
-                                            Toast.makeText(getContext(), getString(R.string.login_failure), Toast.LENGTH_SHORT).show();
-                                        }
-                                    });
-                        }
-                    } else {
-                        Log.e("Login", "Error getting database: " + task.getException());
-                        Toast.makeText(getContext(), getString(R.string.login_failure), Toast.LENGTH_SHORT).show();
-                    }
-                }
-                // The child object exists, and we can proceed.
-            } else {
-                Log.e("Login", "Error getting database: " + task.getException());
+    private void validateUserAndLogin(String name, String email) {
+        repository.getUser(name, (storedUser, error) -> {
+            if (error != null) {
+                Log.e("Login", "Error getting user: " + error);
                 Toast.makeText(getContext(), getString(R.string.login_failure), Toast.LENGTH_SHORT).show();
+                return;
             }
+
+            if (storedUser != null && email.equals(storedUser.getEmail()) && !storedUser.getJwt().isEmpty()) {
+                // Nothing has changed, so there is nothing to write
+                Toast.makeText(getContext(), getString(R.string.login_success), Toast.LENGTH_SHORT).show();
+                completeLogin(name, storedUser.getJwt());
+                return;
+            }
+
+            String jwt = generateMockJWT(name, email);
+            boolean isNewUser = storedUser == null;
+            repository.saveUser(name, new User(email, jwt), (result, saveError) -> {
+                if (saveError != null) {
+                    Log.e("Login", "Error logging in: " + saveError.getMessage());
+                    Toast.makeText(getContext(), getString(R.string.login_failure), Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                Toast.makeText(getContext(),
+                        getString(isNewUser ? R.string.signup_success : R.string.login_success),
+                        Toast.LENGTH_SHORT).show();
+                completeLogin(name, jwt);
+            });
         });
     }
 
+    /**
+     * This is a helper function. It stores the name and token of the user and moves to the dashboard.
+     */
+    private void completeLogin(String name, String jwt) {
+        sharedPreferences.edit()
+                .putString(NAME_PREF_NAME, name)
+                .putString(JWT_PREF_NAME, jwt)
+                .apply();
+        moveToDashboard();
+    }
+
     /**
      * Using this function to move to the dashboard.
      */
@@ -20,6 +20,14 @@ public class MainActivity extends AppCompatActivity {
         setContentView(R.layout.activity_main);
         AppCompatDelegate.setDefaultNightMode(AppCompatDelegate.MODE_NIGHT_NO);
 
+        // Sends whatever was still waiting in the outbox when the app was last closed
+        Outbox.getInstance(this).start();
+
+        if (savedInstanceState != null) {
+            // The fragment manager brings back the screen we were on, along with its ViewModel
+            return;
+        }
+
         SharedPreferences sharedPreferences = getSharedPreferences(LoginFragment.SHARED_PREFS_NAME, MODE_PRIVATE);
 
         FragmentManager fragmentManager = getSupportFragmentManager();
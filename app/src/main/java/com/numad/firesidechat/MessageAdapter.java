@@ -1,102 +1,237 @@
 package com.numad.firesidechat;
 
-import android.annotation.SuppressLint;
-import android.content.res.Resources;
-import android.util.DisplayMetrics;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.TextView;
 
 import androidx.annotation.NonNull;
-import androidx.constraintlayout.widget.ConstraintLayout;
+import androidx.annotation.Nullable;
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 
-import com.numad.firesidechat.databinding.MessageCardBinding;
+import com.numad.firesidechat.databinding.MessageCardReceivedBinding;
+import com.numad.firesidechat.databinding.MessageCardSentBinding;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
  * This adapter is used to help display the messages in the chat fragment.
- * It handles placing the message to the left or right depending upon the owner of the message —
- * who is the sender of the message.
+ * Messages the user sent and messages they received are separate view types with their own
+ * layouts, so a recycled row never has to be moved from one side to the other.
  * <br><br>It also passes the click of a message to delete it from the database.
+ * <br><br>It is a {@link ListAdapter}, so new lists are compared with the old one on a background
+ * thread and only the rows that actually changed are inserted, removed or rebound. The lists it is
+ * handed are the window of the chat the {@link ChatHistoryPager} holds, so they stay the same size
+ * however long the chat gets.
+ * <br><br>The text of each message is measured on a background thread before its list is shown,
+ * and kept for the last {@link #PRECOMPUTED_CACHE_SIZE} messages, along with the hash of the text
+ * it was measured from. Binding a row then only compares that hash and the params its view measures
+ * with, both known already, and hands the ready text to its view, without allocating anything.
+ * <br><br>Messages that are still waiting to be sent are shown faded out.
  */
-public class MessageAdapter extends RecyclerView.Adapter<MessageAdapter.MessageViewHolder> {
-    private MessageCardBinding binding;
+public class MessageAdapter extends ListAdapter<Message, MessageAdapter.MessageViewHolder> {
+    private static final float PENDING_ALPHA = 0.5f;
+    private static final int VIEW_TYPE_SENT = 0;
+    private static final int VIEW_TYPE_RECEIVED = 1;
+    private static final int PRECOMPUTED_CACHE_SIZE = 500;
+
+    private static final Executor measureExecutor = Executors.newSingleThreadExecutor();
+
     private final OnMessageLongClickListener onMessageLongClickListener;
-    private List<Message> messages;
     private final String userName;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Measured text by message ID. LruCache is thread safe, it is filled in the background.
+    private final LruCache<String, MeasuredText> precomputedTexts = new LruCache<>(PRECOMPUTED_CACHE_SIZE);
+    private Set<String> pendingIds = Collections.emptySet();
+    // How the text of a bubble is measured, known once the first row has been created and
+    // corrected by the first row attached with different params
+    @Nullable
+    private volatile PrecomputedTextCompat.Params textParams;
+    private int submission;
+
+    private static final DiffUtil.ItemCallback<Message> DIFF_CALLBACK = new DiffUtil.ItemCallback<>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Message oldItem, @NonNull Message newItem) {
+            return oldItem.getId().equals(newItem.getId());
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull Message oldItem, @NonNull Message newItem) {
+            return oldItem.equals(newItem);
+        }
+    };
 
     public MessageAdapter(String userName, OnMessageLongClickListener onMessageLongClickListener) {
+        super(DIFF_CALLBACK);
         this.userName = userName;
         this.onMessageLongClickListener = onMessageLongClickListener;
-        messages = new ArrayList<>();
     }
 
-    @SuppressLint("NotifyDataSetChanged")
-    public void setMessages(List<Message> messages) {
-        this.messages = messages;
-        notifyDataSetChanged();
+    /**
+     * The list handed in here must not be modified afterwards, since it is measured and diffed in
+     * the background. If another list comes in while this one is being measured, only the newer
+     * one is shown. @param onShown is run once the rows of the list are in place, unless it was
+     * replaced by a newer one.
+     * */
+    public void setMessages(List<Message> messages, @Nullable Runnable onShown) {
+        int current = ++submission;
+        PrecomputedTextCompat.Params params = textParams;
+        if (params == null) {
+            submitList(messages, onShown);
+            return;
+        }
+        measureExecutor.execute(() -> {
+            for (Message message : messages) {
+                precompute(message, params);
+            }
+            mainHandler.post(() -> {
+                if (current == submission) {
+                    submitList(messages, onShown);
+                }
+            });
+        });
+    }
+
+    /**
+     * This function marks the messages with the IDs in @param pendingIds as pending, that is, still
+     * waiting in the {@link Outbox}. Only the rows whose state changed are rebound.
+     * */
+    public void setPendingIds(Set<String> pendingIds) {
+        Set<String> oldPendingIds = this.pendingIds;
+        this.pendingIds = pendingIds;
+        List<Message> messages = getCurrentList();
+        for (int position = 0; position < messages.size(); position++) {
+            String id = messages.get(position).getId();
+            if (oldPendingIds.contains(id) != pendingIds.contains(id)) {
+                notifyItemChanged(position);
+            }
+        }
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return userName.equals(getItem(position).getSender()) ? VIEW_TYPE_SENT : VIEW_TYPE_RECEIVED;
     }
 
     @NonNull
     @Override
     public MessageViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
-        binding = MessageCardBinding.inflate(LayoutInflater.from(parent.getContext()), parent, false);
-        return new MessageViewHolder(binding, onMessageLongClickListener, messages);
+        LayoutInflater inflater = LayoutInflater.from(parent.getContext());
+        MessageViewHolder holder;
+        if (viewType == VIEW_TYPE_SENT) {
+            MessageCardSentBinding binding = MessageCardSentBinding.inflate(inflater, parent, false);
+            holder = new MessageViewHolder(binding.getRoot(), binding.message, onMessageLongClickListener);
+        } else {
+            MessageCardReceivedBinding binding = MessageCardReceivedBinding.inflate(inflater, parent, false);
+            holder = new MessageViewHolder(binding.getRoot(), binding.message, onMessageLongClickListener);
+        }
+        holder.textParams = TextViewCompat.getTextMetricsParams(holder.messageView);
+        if (textParams == null) {
+            // Both layouts use the same text appearance, so either can tell how to measure
+            textParams = holder.textParams;
+        }
+        return holder;
+    }
+
+    @Override
+    public void onViewAttachedToWindow(@NonNull MessageViewHolder holder) {
+        // Only now is the layout direction of the row known for sure. A row is only attached once
+        // while it is on screen, so this is not done on every bind.
+        PrecomputedTextCompat.Params attachedParams = TextViewCompat.getTextMetricsParams(holder.messageView);
+        if (!attachedParams.equals(holder.textParams)) {
+            holder.textParams = attachedParams;
+            textParams = attachedParams;
+        }
     }
 
     @Override
     public void onBindViewHolder(@NonNull MessageViewHolder holder, int position) {
-        Message currentMessage = messages.get(position);
-
-        // Define the look of the message card here
-        DisplayMetrics displayMetrics = Resources.getSystem().getDisplayMetrics();
-        int screenWidth = displayMetrics.widthPixels;
-        int maxWidth = (int) (screenWidth * 0.75);
-
-        binding.message.setMaxWidth(maxWidth);
-
-        // Set the message text
-        binding.message.setText(currentMessage.getMessage());
-
-        // Aligning the chat bubble to the right if the sender is the current user
-        ViewGroup.LayoutParams lp = binding.messageCard.getLayoutParams();
-        if (lp instanceof ConstraintLayout.LayoutParams) {
-            ConstraintLayout.LayoutParams params = (ConstraintLayout.LayoutParams) lp;
-            if (userName.equals(currentMessage.getSender())) {
-                params.horizontalBias = 1.0f;  // 1.0f means aligned to end/right
-            } else {
-                params.horizontalBias = 0.0f;  // 0.0f means aligned to start/left
+        Message currentMessage = getItem(position);
+        holder.message = currentMessage;
+
+        MeasuredText measured = precomputedTexts.get(currentMessage.getId());
+        // setPrecomputedText throws if the text was measured with other params than the row's
+        if (measured != null && measured.isOf(currentMessage.getMessage())
+                && holder.textParams.equals(measured.text.getParams())) {
+            TextViewCompat.setPrecomputedText(holder.messageView, measured.text);
+        } else {
+            // Rows shown before we knew how to measure their text, or measured the wrong way
+            holder.messageView.setText(currentMessage.getMessage());
+            if (!holder.textParams.equals(textParams)) {
+                textParams = holder.textParams;
             }
-            binding.messageCard.setLayoutParams(params);
         }
+        // Messages that have not been sent yet are faded out
+        holder.itemView.setAlpha(pendingIds.contains(currentMessage.getId()) ? PENDING_ALPHA : 1.0f);
     }
 
-    @Override
-    public int getItemCount() {
-        return messages != null ? messages.size() : 0;
+    /**
+     * This is a helper function. It measures the text of @param message with @param params, unless
+     * that has been done already. It runs on the measuring thread.
+     */
+    private void precompute(Message message, PrecomputedTextCompat.Params params) {
+        MeasuredText cached = precomputedTexts.get(message.getId());
+        if (cached == null || !cached.isOf(message.getMessage()) || !params.equals(cached.text.getParams())) {
+            precomputedTexts.put(message.getId(), new MeasuredText(message.getMessage(),
+                    PrecomputedTextCompat.create(message.getMessage(), params)));
+        }
+    }
+
+    /**
+     * This class holds the measured text of a message, and the length and hash of the text it was
+     * measured from. A message whose text changed, like one that was deleted, no longer matches.
+     */
+    private static class MeasuredText {
+        private final int length;
+        private final int hash;
+        private final PrecomputedTextCompat text;
+
+        MeasuredText(String source, PrecomputedTextCompat text) {
+            this.length = source.length();
+            this.hash = source.hashCode();
+            this.text = text;
+        }
+
+        /**
+         * This function returns whether this was measured from @param source. Strings keep their
+         * hash once it has been worked out, so this does not go through the text again.
+         */
+        boolean isOf(String source) {
+            return source.length() == length && source.hashCode() == hash;
+        }
     }
 
     public static class MessageViewHolder extends RecyclerView.ViewHolder
             implements View.OnLongClickListener, View.OnClickListener {
         private final OnMessageLongClickListener onMessageLongClickListener;
-        private final List<Message> messagesCopy;
-
-        public MessageViewHolder(@NonNull MessageCardBinding binding,
-                                 OnMessageLongClickListener onMessageLongClickListener,
-                                 List<Message> m) {
-            super(binding.getRoot());
+        private final TextView messageView;
+        private Message message;
+        // How the text of this row is measured, known once it is created and updated when attached
+        private PrecomputedTextCompat.Params textParams;
+
+        public MessageViewHolder(@NonNull View root, @NonNull TextView messageView,
+                                 OnMessageLongClickListener onMessageLongClickListener) {
+            super(root);
+            this.messageView = messageView;
             this.onMessageLongClickListener = onMessageLongClickListener;
-            messagesCopy = m;
-            binding.getRoot().setOnLongClickListener(this);
-            binding.getRoot().setOnClickListener(this);
+            root.setOnLongClickListener(this);
+            root.setOnClickListener(this);
         }
 
         @Override
         public boolean onLongClick(View view) {
-            onMessageLongClickListener.onMessageLongPress(messagesCopy.get(getAdapterPosition()));
+            onMessageLongClickListener.onMessageLongPress(message);
             return false;
         }
 
@@ -0,0 +1,238 @@
+package com.numad.firesidechat;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This class sends messages through an outbox kept in the {@link LocalChatStore}.
+ * <br><br>
+ * A message is stored on the device first, and shown in the chat as pending straight away. The
+ * outbox is then flushed in the background: everything waiting in it is sent in one
+ * {@link ChatRepository#sendMessages} write, up to {@link #BATCH_SIZE} messages at a time, and
+ * taken out of the outbox once the repository has it. Sends made in quick succession are coalesced into one batch.
+ * <br><br>
+ * If a batch fails, it is retried with exponential backoff. We only flush while connected, and
+ * flush again as soon as the connection comes back. Since the outbox is on disk, messages that
+ * were still waiting when the app was closed are sent the next time it starts. Sending a batch
+ * again is safe, so a batch that was sent just before the app was killed does no harm either.
+ * <br><br>
+ * A batch the repository refuses for good, with a {@link ChatRepository.RejectedException}, is not
+ * retried, as it would block every message behind it. Its messages are sent one at a time instead,
+ * and the ones refused on their own are moved out of the outbox and reported to the
+ * {@link OnSendFailedListener}s. How big the batches are and how long we wait before a retry is up
+ * to {@link OutboxBatching}.
+ */
+public class Outbox {
+    public static final int BATCH_SIZE = 100;
+    // How long we wait after a send for more sends to put in the same batch
+    private static final long COALESCE_DELAY_MS = 150;
+    private static final long INITIAL_RETRY_DELAY_MS = 1000;
+    private static final long MAX_RETRY_DELAY_MS = 60_000;
+
+    private static Outbox instance;
+
+    private final LocalChatStore localStore;
+    private final ChatRepository repository;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable flushRunnable = this::flush;
+    private final Set<String> pendingIds = new LinkedHashSet<>();
+    private final List<OnPendingChangedListener> listeners = new ArrayList<>();
+    private final List<OnSendFailedListener> failedListeners = new ArrayList<>();
+
+    private final OutboxBatching batching = new OutboxBatching(BATCH_SIZE, INITIAL_RETRY_DELAY_MS, MAX_RETRY_DELAY_MS);
+
+    private boolean started;
+    private boolean connected;
+    private boolean flushing;
+
+    private Outbox(Context context) {
+        localStore = LocalChatStore.getInstance(context);
+        repository = ChatRepositories.getInstance();
+    }
+
+    public static synchronized Outbox getInstance(Context context) {
+        if (instance == null) {
+            instance = new Outbox(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * This function starts watching the connection, and flushes the outbox whenever we are connected.
+     * It is called once when the app starts.
+     */
+    public void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        // The outbox lives as long as the app, so this subscription has no lifecycle to end it
+        ChatRepositories.getRegistry().observeConnection(new ChatRepository.Listener<Boolean>() {
+            @Override
+            public void onChanged(Boolean isConnected) {
+                connected = isConnected;
+                if (connected) {
+                    batching.onConnected();
+                    scheduleFlush(0);
+                }
+            }
+
+            @Override
+            public void onError(Exception error) {
+                Log.e("Outbox", "Error watching the connection: " + error.getMessage());
+            }
+        });
+    }
+
+    /**
+     * This function queues @param message to be sent to @param recipient.
+     * It is marked as pending right away; the flush happens once it is stored on the device.
+     */
+    public void send(String recipient, Message message) {
+        pendingIds.add(message.getId());
+        notifyPendingChanged();
+        localStore.enqueueOutboxAsync(new OutboxEntry(recipient, message), () -> scheduleFlush(COALESCE_DELAY_MS));
+    }
+
+    /**
+     * This function hands the messages of @param conversationId that are still waiting in the
+     * outbox to @param callback, so the chat can show them as pending.
+     */
+    public void loadPending(String conversationId, LocalChatStore.Callback<List<Message>> callback) {
+        localStore.loadOutbox(conversationId, entries -> {
+            List<Message> messages = new ArrayList<>(entries.size());
+            for (OutboxEntry entry : entries) {
+                messages.add(entry.getMessage());
+                pendingIds.add(entry.getMessage().getId());
+            }
+            notifyPendingChanged();
+            callback.onResult(messages);
+        });
+    }
+
+    /**
+     * This function returns the IDs of the messages that have not been sent yet.
+     */
+    public Set<String> getPendingIds() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(pendingIds));
+    }
+
+    public void addOnPendingChangedListener(OnPendingChangedListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeOnPendingChangedListener(OnPendingChangedListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void addOnSendFailedListener(OnSendFailedListener listener) {
+        failedListeners.add(listener);
+    }
+
+    public void removeOnSendFailedListener(OnSendFailedListener listener) {
+        failedListeners.remove(listener);
+    }
+
+    /**
+     * This function forgets every pending message and stops flushing until the next send. It is
+     * called on log out, along with {@link LocalChatStore#clearAsync()}, which empties the outbox
+     * on the device.
+     */
+    public void clear() {
+        mainHandler.removeCallbacks(flushRunnable);
+        pendingIds.clear();
+        batching.reset();
+        notifyPendingChanged();
+    }
+
+    private void scheduleFlush(long delayMs) {
+        mainHandler.removeCallbacks(flushRunnable);
+        mainHandler.postDelayed(flushRunnable, delayMs);
+    }
+
+    /**
+     * This is a helper function. It sends the next batch from the outbox, and carries on with the
+     * batch after that until the outbox is empty.
+     */
+    private void flush() {
+        if (flushing || !connected) {
+            return;
+        }
+        flushing = true;
+        localStore.loadOutbox(batching.getBatchLimit(), entries -> {
+            if (entries.isEmpty()) {
+                flushing = false;
+                return;
+            }
+            List<String> ids = new ArrayList<>(entries.size());
+            for (OutboxEntry entry : entries) {
+                ids.add(entry.getMessage().getId());
+            }
+            repository.sendMessages(entries, (result, error) -> {
+                flushing = false;
+                if (error instanceof ChatRepository.RejectedException) {
+                    onRejected(entries, ids, error);
+                    return;
+                }
+                if (error != null) {
+                    long retryDelayMs = batching.onFailed();
+                    Log.e("Outbox", "Error sending messages, retrying in " + retryDelayMs + "ms: " + error.getMessage());
+                    scheduleFlush(retryDelayMs);
+                    return;
+                }
+                localStore.removeOutboxAsync(ids);
+                pendingIds.removeAll(ids);
+                notifyPendingChanged();
+                batching.onSent(entries.size());
+                scheduleFlush(0);
+            });
+        });
+    }
+
+    /**
+     * This is a helper function. It handles @param entries, with the IDs @param ids, being refused
+     * by the repository. A batch of several messages is sent again one message at a time, and a
+     * single message is moved out of the outbox.
+     */
+    private void onRejected(List<OutboxEntry> entries, List<String> ids, Exception error) {
+        if (batching.onRejected(entries.size())) {
+            Log.e("Outbox", "Batch of " + entries.size() + " messages refused, sending them one at a time: " + error.getMessage());
+            scheduleFlush(0);
+            return;
+        }
+        Log.e("Outbox", "Message " + ids.get(0) + " refused, giving up on it: " + error.getMessage());
+        localStore.failOutboxAsync(ids);
+        pendingIds.removeAll(ids);
+        notifyPendingChanged();
+        for (OnSendFailedListener listener : new ArrayList<>(failedListeners)) {
+            listener.onSendFailed(entries);
+        }
+        scheduleFlush(0);
+    }
+
+    private void notifyPendingChanged() {
+        Set<String> ids = getPendingIds();
+        for (OnPendingChangedListener listener : new ArrayList<>(listeners)) {
+            listener.onPendingChanged(ids);
+        }
+    }
+
+    public interface OnPendingChangedListener {
+        void onPendingChanged(Set<String> pendingIds);
+    }
+
+    public interface OnSendFailedListener {
+        /**
+         * The messages of @param entries were refused and will not be sent.
+         */
+        void onSendFailed(List<OutboxEntry> entries);
+    }
+}
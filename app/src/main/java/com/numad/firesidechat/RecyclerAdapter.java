@@ -1,89 +1,132 @@
 package com.numad.firesidechat;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.numad.firesidechat.databinding.ContactCardviewBinding;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
- * This adapter is used to help display the chats on the dashboard. It is fairly straightforward.
- * It takes in a list of message history objects and displays them in the recycler view.
+ * This adapter is used to help display the chats on the dashboard.
+ * It takes in the conversation summaries of the user and displays them in the recycler view, the
+ * chat with the latest message first. Chats nobody has written in yet come last, by name.
+ * <br><br>
+ * It is a {@link ListAdapter} with stable IDs, one per chat. When a new message comes in, the new
+ * list is compared with the old one on a background thread, so that one chat is moved to the top
+ * and rebound while every other row stays as it is.
  * */
-public class RecyclerAdapter extends RecyclerView.Adapter<RecyclerAdapter.ViewHolder> {
-    private ContactCardviewBinding binding;
-    private HashMap<String, MessageHistoryObject> chats;
+public class RecyclerAdapter extends ListAdapter<ConversationSummary, RecyclerAdapter.ViewHolder> {
+    private static final Comparator<ConversationSummary> RECENCY = (a, b) -> {
+        int byTimestamp = Long.compare(b.getLastTimestamp(), a.getLastTimestamp());
+        return byTimestamp != 0 ? byTimestamp : a.getPeer().compareTo(b.getPeer());
+    };
+
+    private static final DiffUtil.ItemCallback<ConversationSummary> DIFF_CALLBACK = new DiffUtil.ItemCallback<>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull ConversationSummary oldItem, @NonNull ConversationSummary newItem) {
+            return oldItem.getPeer().equals(newItem.getPeer());
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull ConversationSummary oldItem, @NonNull ConversationSummary newItem) {
+            return oldItem.equals(newItem);
+        }
+    };
+
     private final OnNoteListener onNoteListener;
-    private List<String> keys;
-    private List<MessageHistoryObject> values;
+    // The stable ID of each chat, handed out the first time we see it
+    private final Map<String, Long> itemIds = new HashMap<>();
 
     public RecyclerAdapter(OnNoteListener onNoteListener) {
+        super(DIFF_CALLBACK);
         this.onNoteListener = onNoteListener;
-        chats = new HashMap<>();
+        setHasStableIds(true);
+    }
+
+    /**
+     * This function shows @param chats, the summaries keyed by the other user's name, most recent first.
+     * */
+    public void setChats(Map<String, ConversationSummary> chats) {
+        List<ConversationSummary> sorted = new ArrayList<>(chats.size());
+        for (Map.Entry<String, ConversationSummary> chat : chats.entrySet()) {
+            ConversationSummary summary = chat.getValue();
+            if (!chat.getKey().equals(summary.getPeer())) {
+                // The key is the name the chat is stored under, so it is the one we trust
+                summary = new ConversationSummary(chat.getKey(), summary.getLastMessage(),
+                        summary.getLastTimestamp(), summary.getUnreadCount(), summary.getConversationId());
+            }
+            sorted.add(summary);
+        }
+        sorted.sort(RECENCY);
+        submitList(sorted);
     }
 
-    @SuppressLint("NotifyDataSetChanged")
-    public void setChats(HashMap<String, MessageHistoryObject> chats) {
-        this.chats = chats;
-        keys = new ArrayList<>(chats.keySet());
-        values = new ArrayList<>(chats.values());
-        notifyDataSetChanged();
+    @Override
+    public long getItemId(int position) {
+        String peer = getItem(position).getPeer();
+        Long id = itemIds.get(peer);
+        if (id == null) {
+            id = (long) itemIds.size();
+            itemIds.put(peer, id);
+        }
+        return id;
     }
 
     public static class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
-        OnNoteListener onNoteListener;
-        private final List<String> chats;
+        private final ContactCardviewBinding binding;
+        private final OnNoteListener onNoteListener;
+        private String peer;
 
-        public ViewHolder(@NonNull ContactCardviewBinding binding, OnNoteListener onNoteListener, List<String> chats) {
+        public ViewHolder(@NonNull ContactCardviewBinding binding, OnNoteListener onNoteListener) {
             super(binding.getRoot());
-            this.chats = chats;
+            this.binding = binding;
             this.onNoteListener = onNoteListener;
             binding.main.setOnClickListener(this);
         }
 
         public void onClick(View v) {
-            onNoteListener.onNoteClick(chats.get(getAdapterPosition()));
+            onNoteListener.onNoteClick(peer);
         }
     }
 
     @NonNull
     @Override
     public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
-        binding = ContactCardviewBinding.inflate(LayoutInflater.from(parent.getContext()), parent, false);
-        return new ViewHolder(binding, this.onNoteListener, keys);
+        ContactCardviewBinding binding = ContactCardviewBinding.inflate(LayoutInflater.from(parent.getContext()), parent, false);
+        return new ViewHolder(binding, this.onNoteListener);
     }
 
     @Override
     public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
-        binding.textViewName.setText(keys.get(position));
-        Context context = binding.getRoot().getContext();
-        if (!values.get(position).getMessagesSent().isEmpty()) {
-            if (values.get(position).getNotificationTracker().isRead()) {
-                binding.textViewStatus.setText(context.getString(R.string.read));
+        ConversationSummary summary = getItem(position);
+        holder.peer = summary.getPeer();
+        holder.binding.textViewName.setText(summary.getPeer());
+        Context context = holder.binding.getRoot().getContext();
+        if (summary.getLastTimestamp() != 0) {
+            if (summary.getUnreadCount() == 0) {
+                holder.binding.textViewStatus.setText(context.getString(R.string.read));
             } else {
-                int count = values.get(position).getNotificationTracker().getCount();
-                binding.textViewStatus.setText(context.getString(R.string.x_new_messages, count));
+                int count = summary.getUnreadCount();
+                holder.binding.textViewStatus.setText(context.getString(R.string.x_new_messages, count));
             }
         } else {
-            binding.textViewStatus.setText(context.getString(R.string.start_a_conversation));
+            holder.binding.textViewStatus.setText(context.getString(R.string.start_a_conversation));
         }
 
     }
 
-    @Override
-    public int getItemCount() {
-        return chats.size();
-    }
-
     public interface OnNoteListener {
         void onNoteClick(String recipientName);
     }
@@ -0,0 +1,115 @@
+package com.numad.firesidechat;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * This class finds users by the start of their name.
+ * <br><br>
+ * The {@link ChatRepository} keeps every user in an index by their lowercased name, so searching
+ * only ever reads up to {@link #SUGGESTION_LIMIT} entries, no matter how many users there are.
+ * <br><br>
+ * The results of the last {@link #CACHE_SIZE} prefixes are kept in memory. When a shorter prefix
+ * already came back with every match, longer ones are filtered from it without asking again.
+ */
+public class UsernameSearch {
+    public static final int SUGGESTION_LIMIT = 10;
+    private static final int CACHE_SIZE = 32;
+
+    private final ChatRepository repository;
+    private final LruCache<String, List<String>> cache = new LruCache<>(CACHE_SIZE);
+
+    public UsernameSearch(ChatRepository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * This function hands up to {@link #SUGGESTION_LIMIT} names starting with @param prefix,
+     * ignoring case, to @param callback.
+     */
+    public void suggest(String prefix, Callback<List<String>> callback) {
+        String key = normalize(prefix);
+        if (key.isEmpty()) {
+            callback.onResult(Collections.emptyList());
+            return;
+        }
+        List<String> cached = cachedMatches(key);
+        if (cached != null) {
+            callback.onResult(cached);
+            return;
+        }
+
+        repository.findUsernames(key, SUGGESTION_LIMIT, (names, error) -> {
+            if (error != null) {
+                Log.e("UsernameSearch", "Error searching for " + key + ": " + error);
+                callback.onResult(Collections.emptyList());
+                return;
+            }
+            cache.put(key, names);
+            callback.onResult(names);
+        });
+    }
+
+    /**
+     * This function hands the stored name matching @param name, ignoring case, to @param callback,
+     * or null if there is no such user. A name with the exact same casing is preferred.
+     */
+    public void resolve(String name, Callback<String> callback) {
+        if (normalize(name).isEmpty()) {
+            callback.onResult(null);
+            return;
+        }
+        repository.resolveUsername(name, (match, error) -> {
+            if (error != null) {
+                Log.e("UsernameSearch", "Error looking up " + name + ": " + error);
+            }
+            callback.onResult(match);
+        });
+    }
+
+    /**
+     * This is a helper function. It returns the cached matches for @param key, either stored for it
+     * directly or filtered from a complete result of a shorter prefix, or null if there are none.
+     */
+    @Nullable
+    private List<String> cachedMatches(String key) {
+        List<String> exact = cache.get(key);
+        if (exact != null) {
+            return exact;
+        }
+        Map<String, List<String>> cached = cache.snapshot();
+        for (int length = key.length() - 1; length > 0; length--) {
+            List<String> shorter = cached.get(key.substring(0, length));
+            if (shorter != null && shorter.size() < SUGGESTION_LIMIT) {
+                List<String> names = new ArrayList<>();
+                for (String name : shorter) {
+                    if (normalize(name).startsWith(key)) {
+                        names.add(name);
+                    }
+                }
+                cache.put(key, names);
+                return names;
+            }
+        }
+        return null;
+    }
+
+    private static String normalize(String name) {
+        return name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    public interface Callback<T> {
+        /**
+         * Errors are logged rather than handed over: a failed search finds nothing.
+         */
+        void onResult(@Nullable T result);
+    }
+}
@@ -0,0 +1,40 @@
+package com.numad.firesidechat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * This class builds the chats the benchmarks run on: two users taking turns, one message a
+ * second, with IDs that sort like push keys.
+ */
+final class BenchmarkData {
+    static final String ALICE = "alice";
+    static final String BOB = "bob";
+    private static final long START_TIMESTAMP = 1_700_000_000_000L;
+
+    private BenchmarkData() {
+    }
+
+    static Message message(int index) {
+        return new Message(String.format(Locale.ROOT, "m%09d", index), index % 2 == 0 ? ALICE : BOB,
+                "Message number " + index, START_TIMESTAMP + index * 1000L);
+    }
+
+    static List<Message> messages(int size) {
+        List<Message> messages = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            messages.add(message(i));
+        }
+        return messages;
+    }
+
+    static MessageHistoryObject history(int size) {
+        HashMap<String, Message> messages = new HashMap<>(size * 2);
+        for (Message message : messages(size)) {
+            messages.put(message.getId(), message);
+        }
+        return new MessageHistoryObject(new NotificationTracker(false, 3), messages);
+    }
+}
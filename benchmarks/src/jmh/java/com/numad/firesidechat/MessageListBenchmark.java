@@ -0,0 +1,54 @@
+package com.numad.firesidechat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appending a message to, and deleting one by its ID from, a chat of {@link #size} messages.
+ * <br><br>
+ * Each operation is undone in the same invocation, so the chat keeps its size across iterations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MessageListBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    private MessageList messageList;
+    private Message newest;
+    private Message middle;
+
+    @Setup
+    public void setUp() {
+        messageList = new MessageList(BenchmarkData.messages(size));
+        newest = BenchmarkData.message(size);
+        middle = BenchmarkData.message(size / 2);
+    }
+
+    @Benchmark
+    public Message append() {
+        messageList.put(newest);
+        return messageList.remove(newest.getId());
+    }
+
+    @Benchmark
+    public Message deleteById() {
+        Message removed = messageList.remove(middle.getId());
+        messageList.put(middle);
+        return removed;
+    }
+
+    @Benchmark
+    public Message newestExceptNewest() {
+        return messageList.newestExcept(messageList.newest().getId());
+    }
+}
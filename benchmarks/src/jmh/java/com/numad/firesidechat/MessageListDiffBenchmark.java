@@ -0,0 +1,45 @@
+package com.numad.firesidechat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Diffing a chat of {@link #size} messages against the same chat after one message came in,
+ * one was deleted and one was turned into a tombstone, which is what a typical update looks like.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageListDiffBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    private List<Message> oldMessages;
+    private List<Message> newMessages;
+
+    @Setup
+    public void setUp() {
+        oldMessages = BenchmarkData.messages(size);
+        newMessages = new ArrayList<>(oldMessages);
+        newMessages.remove(size / 3);
+        Message tombstoned = newMessages.get(size / 2);
+        newMessages.set(size / 2, new Message(tombstoned.getId(), tombstoned.getSender(), "",
+                tombstoned.getTimestamp(), true));
+        newMessages.add(BenchmarkData.message(size));
+    }
+
+    @Benchmark
+    public MessageListDiff diff() {
+        return MessageListDiff.compute(oldMessages, newMessages);
+    }
+}
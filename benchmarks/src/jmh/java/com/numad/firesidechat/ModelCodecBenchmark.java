@@ -0,0 +1,44 @@
+package com.numad.firesidechat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding a {@link MessageHistoryObject} of {@link #size} messages into the maps the database
+ * stores, and decoding it back.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ModelCodecBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    private MessageHistoryObject history;
+    private Map<String, Object> encoded;
+
+    @Setup
+    public void setUp() {
+        history = BenchmarkData.history(size);
+        encoded = ModelCodec.encodeMessageHistory(history);
+    }
+
+    @Benchmark
+    public Map<String, Object> encodeHistory() {
+        return ModelCodec.encodeMessageHistory(history);
+    }
+
+    @Benchmark
+    public MessageHistoryObject decodeHistory() {
+        return ModelCodec.decodeMessageHistory(encoded);
+    }
+}
@@ -0,0 +1,39 @@
+package com.numad.firesidechat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Working out the conversation summary of a chat of {@link #size} messages from scratch, with
+ * the last tenth of them unread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SummaryCalculatorBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    private List<Message> messages;
+    private long lastReadTimestamp;
+
+    @Setup
+    public void setUp() {
+        messages = BenchmarkData.messages(size);
+        lastReadTimestamp = messages.get(size - size / 10 - 1).getTimestamp();
+    }
+
+    @Benchmark
+    public ConversationSummary summarize() {
+        return SummaryCalculator.summarize(BenchmarkData.ALICE, BenchmarkData.BOB, messages, lastReadTimestamp);
+    }
+}
@@ -0,0 +1,58 @@
+package com.numad.firesidechat;
+
+/**
+ * This class keeps track of how many bytes have been read in a window of time, so background work
+ * such as the {@code ChatPrefetcher} can stop once it has read its share.
+ * <br><br>
+ * A read is charged with an estimate when it starts, since it costs the bytes even if its result
+ * ends up unused, and the estimate is settled against the real size once that is known. A new
+ * window starts once {@code windowMs} have gone by since the last one started.
+ * <br><br>
+ * Times are handed in, so any clock can be used. It is not thread safe.
+ */
+public class ByteBudget {
+    private final long budgetBytes;
+    private final long windowMs;
+
+    private long windowStart = -1;
+    private long bytesSpent;
+
+    public ByteBudget(long budgetBytes, long windowMs) {
+        this.budgetBytes = budgetBytes;
+        this.windowMs = windowMs;
+    }
+
+    /**
+     * This function returns whether there is budget left at @param now, starting a new window once
+     * the last one is over.
+     */
+    public boolean hasBudget(long now) {
+        if (windowStart < 0 || now - windowStart >= windowMs) {
+            windowStart = now;
+            bytesSpent = 0;
+        }
+        return bytesSpent < budgetBytes;
+    }
+
+    /**
+     * This function charges @param bytes to the current window.
+     */
+    public void charge(long bytes) {
+        bytesSpent += bytes;
+    }
+
+    /**
+     * This function replaces @param estimate, charged earlier, with @param actual, what was really
+     * read. A window that started in between is never taken below nothing.
+     */
+    public void settle(long estimate, long actual) {
+        bytesSpent = Math.max(0, bytesSpent + actual - estimate);
+    }
+
+    /**
+     * This function returns how many bytes have been charged to the current window.
+     */
+    public long getBytesSpent() {
+        return bytesSpent;
+    }
+}
@@ -0,0 +1,371 @@
+package com.numad.firesidechat;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * This class exports the whole history of a chat to a file, and imports such a file into a chat.
+ * <br><br>
+ * Neither ever holds more than one page of messages. The export reads the chat a page at a time
+ * through {@link ChatRepository#loadMessagesBefore} and writes each page out before it asks for the
+ * next one. The import first copies the file to a spool file, checking every record on the way, so
+ * a file that is cut short or holds messages of another chat is turned down before anything is
+ * written. It then reads a batch of messages from the spool file and writes it with
+ * {@link ChatRepository#importMessages} before it reads the next one. The files are read and written
+ * on the executor handed in, never on the thread the repository calls back on.
+ * <br><br>
+ * The file starts with {@link #MAGIC} and {@link #VERSION}. Every message after that is one
+ * record, written newest first since that is the order the chat is paged in. The last record marks
+ * the end of the file and holds the number of messages, so a file that was cut short is noticed.
+ */
+public final class ChatArchive {
+    // "FSCA", for Fireside Chat archive
+    public static final int MAGIC = 0x46534341;
+    public static final int VERSION = 1;
+    public static final int PAGE_SIZE = 200;
+    // The longest text of a message an archive may hold, in bytes, so a damaged length cannot make
+    // us allocate more than that
+    public static final int MAX_TEXT_BYTES = 1024 * 1024;
+    // The most text a batch of the import holds, in bytes, so long messages make for smaller batches
+    private static final int MAX_BATCH_BYTES = 4 * 1024 * 1024;
+
+    private static final byte RECORD_END = 0;
+    private static final byte RECORD_MESSAGE = 1;
+    // Characters the database does not allow in a key, besides control characters
+    private static final String FORBIDDEN_KEY_CHARACTERS = "/.#$[]";
+
+    private ChatArchive() {
+    }
+
+    /**
+     * This function writes every message of the chat between @param name1 and @param name2 to
+     * @param out, and hands the number of messages written to @param callback, on @param ioExecutor.
+     * @param out is closed once the export is done, or has failed.
+     */
+    public static void export(ChatRepository repository, String name1, String name2, OutputStream out,
+                              Executor ioExecutor, ChatRepository.Callback<Integer> callback) {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        ioExecutor.execute(() -> {
+            try {
+                writeHeader(data);
+            } catch (IOException e) {
+                finish(data, null, e, callback);
+                return;
+            }
+            repository.loadLatestMessages(name1, name2, PAGE_SIZE,
+                    new Export(repository, name1, name2, data, ioExecutor, callback));
+        });
+    }
+
+    /**
+     * This function writes every message in @param in to the chat between @param name1 and
+     * @param name2, a batch at a time, and hands the number of messages written to @param callback,
+     * on @param ioExecutor. The archive is checked in full first, through a spool file in
+     * @param spoolDir, and nothing is written unless all of it is sound. Messages that are already
+     * in the chat are overwritten, so an import that failed can be run again. @param in is closed,
+     * and the spool file deleted, once the import is done, or has failed.
+     */
+    public static void importInto(ChatRepository repository, String name1, String name2, InputStream in,
+                                  File spoolDir, Executor ioExecutor, ChatRepository.Callback<Integer> callback) {
+        ioExecutor.execute(() -> {
+            File spool;
+            DataInputStream data;
+            try {
+                spool = spool(name1, name2, in, spoolDir);
+            } catch (IOException e) {
+                finish(in, null, e, callback);
+                return;
+            }
+            try {
+                data = new DataInputStream(new BufferedInputStream(new FileInputStream(spool)));
+            } catch (IOException e) {
+                finish(spool::delete, null, e, callback);
+                return;
+            }
+            Closeable spooled = () -> {
+                try {
+                    data.close();
+                } finally {
+                    spool.delete();
+                }
+            };
+            try {
+                readHeader(data);
+                repository.ensureConversation(name1, name2);
+            } catch (IOException | RuntimeException e) {
+                finish(spooled, null, e, callback);
+                return;
+            }
+            new Import(repository, name1, name2, data, spooled, ioExecutor, callback).next();
+        });
+    }
+
+    /**
+     * This is a helper function. It copies the archive in @param in to a new file in @param spoolDir,
+     * reading every record and checking it belongs in the chat between @param name1 and @param name2,
+     * and returns that file. Nothing is left behind if the archive is not sound. @param in is closed.
+     */
+    private static File spool(String name1, String name2, InputStream in, File spoolDir) throws IOException {
+        try (DataInputStream data = new DataInputStream(new BufferedInputStream(in))) {
+            readHeader(data);
+            File spool = File.createTempFile("import", ".fsca", spoolDir);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spool)))) {
+                writeHeader(out);
+                int count = 0;
+                Message message;
+                while ((message = readMessage(data, name1, name2, count)) != null) {
+                    writeMessage(out, message);
+                    count++;
+                }
+                out.writeByte(RECORD_END);
+                out.writeInt(count);
+            } catch (IOException e) {
+                spool.delete();
+                throw e;
+            }
+            return spool;
+        }
+    }
+
+    /**
+     * This is a helper function. It closes @param stream and hands @param count, or @param error,
+     * to @param callback. Failing to close an export means it was not fully written.
+     */
+    private static void finish(Closeable stream, @Nullable Integer count, @Nullable Exception error,
+                               ChatRepository.Callback<Integer> callback) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+        callback.onComplete(error == null ? count : null, error);
+    }
+
+    private static void writeHeader(DataOutputStream data) throws IOException {
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+    }
+
+    private static void readHeader(DataInputStream data) throws IOException {
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a chat archive");
+        }
+        int version = data.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported chat archive version " + version);
+        }
+    }
+
+    private static void writeMessage(DataOutputStream data, Message message) throws IOException {
+        data.writeByte(RECORD_MESSAGE);
+        data.writeUTF(message.getId());
+        data.writeUTF(message.getSender());
+        // Messages can be longer than writeUTF allows, so their text is written with its length
+        byte[] text = message.getMessage().getBytes(StandardCharsets.UTF_8);
+        if (text.length > MAX_TEXT_BYTES) {
+            throw new IOException("Message " + message.getId() + " is too long to archive");
+        }
+        data.writeInt(text.length);
+        data.write(text);
+        data.writeLong(message.getTimestamp());
+        data.writeBoolean(message.getDeleted());
+    }
+
+    /**
+     * This is a helper function. It reads the record after the one read last from @param data, and
+     * checks that its ID can be used as a key and that it was sent by @param name1 or @param name2.
+     * It returns null once the end of the archive is reached, having checked that @param count
+     * messages were read, as the archive says there are.
+     */
+    @Nullable
+    private static Message readMessage(DataInputStream data, String name1, String name2, int count)
+            throws IOException {
+        byte record = data.readByte();
+        if (record == RECORD_END) {
+            int expected = data.readInt();
+            if (expected != count) {
+                throw new IOException("Chat archive holds " + count + " messages, expected " + expected);
+            }
+            return null;
+        }
+        if (record != RECORD_MESSAGE) {
+            throw new IOException("Unknown chat archive record " + record);
+        }
+        String id = data.readUTF();
+        if (!isValidKey(id)) {
+            throw new IOException("Invalid message ID in chat archive: " + id);
+        }
+        String sender = data.readUTF();
+        if (!sender.equals(name1) && !sender.equals(name2)) {
+            throw new IOException("Chat archive holds a message from " + sender);
+        }
+        int length = data.readInt();
+        if (length < 0 || length > MAX_TEXT_BYTES) {
+            throw new IOException("Invalid message length in chat archive: " + length);
+        }
+        byte[] text = new byte[length];
+        data.readFully(text);
+        long timestamp = data.readLong();
+        boolean deleted = data.readBoolean();
+        return new Message(id, sender, new String(text, StandardCharsets.UTF_8), timestamp, deleted);
+    }
+
+    /**
+     * This is a helper function. It returns whether @param key can be used as a key in the database,
+     * which does not allow empty keys, nor control characters or any of
+     * {@link #FORBIDDEN_KEY_CHARACTERS} in them.
+     */
+    private static boolean isValidKey(String key) {
+        if (key.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c < 0x20 || c == 0x7F || FORBIDDEN_KEY_CHARACTERS.indexOf(c) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * This class writes each page it is handed and asks for the one before it, until a short page
+     * shows the start of the chat has been reached.
+     */
+    private static class Export implements ChatRepository.Callback<List<Message>> {
+        private final ChatRepository repository;
+        private final String name1;
+        private final String name2;
+        private final DataOutputStream data;
+        private final Executor ioExecutor;
+        private final ChatRepository.Callback<Integer> callback;
+        private int count;
+
+        Export(ChatRepository repository, String name1, String name2, DataOutputStream data,
+               Executor ioExecutor, ChatRepository.Callback<Integer> callback) {
+            this.repository = repository;
+            this.name1 = name1;
+            this.name2 = name2;
+            this.data = data;
+            this.ioExecutor = ioExecutor;
+            this.callback = callback;
+        }
+
+        @Override
+        public void onComplete(@Nullable List<Message> page, @Nullable Exception error) {
+            ioExecutor.execute(() -> {
+                if (error != null || page == null) {
+                    finish(data, null, error, callback);
+                    return;
+                }
+                try {
+                    // Pages come oldest first, and the archive is written newest first
+                    for (int i = page.size() - 1; i >= 0; i--) {
+                        writeMessage(data, page.get(i));
+                    }
+                    count += page.size();
+                    if (page.size() < PAGE_SIZE) {
+                        data.writeByte(RECORD_END);
+                        data.writeInt(count);
+                        finish(data, count, null, callback);
+                        return;
+                    }
+                } catch (IOException e) {
+                    finish(data, null, e, callback);
+                    return;
+                }
+                repository.loadMessagesBefore(name1, name2, page.get(0), PAGE_SIZE, this);
+            });
+        }
+    }
+
+    /**
+     * This class reads a batch from the spooled archive, writes it to the chat, and reads the next one
+     * once that write is done, until the end of the archive.
+     */
+    private static class Import {
+        private final ChatRepository repository;
+        private final String name1;
+        private final String name2;
+        private final DataInputStream data;
+        // Closes the spool file and deletes it
+        private final Closeable spooled;
+        private final Executor ioExecutor;
+        private final ChatRepository.Callback<Integer> callback;
+        private int count;
+
+        Import(ChatRepository repository, String name1, String name2, DataInputStream data, Closeable spooled,
+               Executor ioExecutor, ChatRepository.Callback<Integer> callback) {
+            this.repository = repository;
+            this.name1 = name1;
+            this.name2 = name2;
+            this.data = data;
+            this.spooled = spooled;
+            this.ioExecutor = ioExecutor;
+            this.callback = callback;
+        }
+
+        /**
+         * This function reads and writes the next batch. It runs on the executor the archive is read on.
+         */
+        void next() {
+            List<Message> batch = new ArrayList<>(PAGE_SIZE);
+            long batchBytes = 0;
+            boolean end = false;
+            try {
+                while (batch.size() < PAGE_SIZE && batchBytes < MAX_BATCH_BYTES) {
+                    Message message = readMessage(data, name1, name2, count + batch.size());
+                    if (message == null) {
+                        end = true;
+                        break;
+                    }
+                    batch.add(message);
+                    // Roughly, the length in chars rather than in bytes is enough here
+                    batchBytes += message.getMessage().length();
+                }
+            } catch (IOException e) {
+                finish(spooled, null, e, callback);
+                return;
+            }
+            if (batch.isEmpty()) {
+                finish(spooled, count, null, callback);
+                return;
+            }
+            boolean last = end;
+            try {
+                repository.importMessages(name1, name2, batch, (result, error) -> ioExecutor.execute(() -> {
+                    if (error != null) {
+                        finish(spooled, null, error, callback);
+                        return;
+                    }
+                    count += batch.size();
+                    if (last) {
+                        finish(spooled, count, null, callback);
+                    } else {
+                        next();
+                    }
+                }));
+            } catch (RuntimeException e) {
+                // E.g. a path the database turns down, so the callback would never be called
+                finish(spooled, null, e, callback);
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.numad.firesidechat;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * This interface is everything the app reads from and writes to its backend: users, conversations,
+ * messages, unread state and live subscriptions.
+ * <br><br>
+ * FirebaseChatRepository, in the app, is the one the app runs on. {@link InMemoryChatRepository}
+ * keeps everything in memory, with configurable latency and failures, so the data paths can be
+ * measured and tested without a Firebase project. ChatRepositories hands out the one in use.
+ * <br><br>
+ * Results and events are always delivered on the thread the repository was set up to call back on,
+ * the main thread in the app. Messages are ordered by timestamp, with the message ID breaking ties.
+ */
+public interface ChatRepository {
+
+    /**
+     * This function brings the data of @param username up to date, for instance by moving it out
+     * of an older layout. It is called once the user is logged in.
+     */
+    void prepareUser(String username);
+
+    /**
+     * This function hands the record of the user called @param name to @param callback, or null
+     * if there is no such user.
+     */
+    void getUser(String name, Callback<User> callback);
+
+    /**
+     * This function stores @param user under @param name and makes them searchable.
+     */
+    void saveUser(String name, User user, Callback<Void> callback);
+
+    /**
+     * This function hands up to @param limit names starting with @param prefix, ignoring case,
+     * to @param callback.
+     */
+    void findUsernames(String prefix, int limit, Callback<List<String>> callback);
+
+    /**
+     * This function hands the stored name matching @param name, ignoring case, to @param callback,
+     * or null if there is no such user. A name with the exact same casing is preferred.
+     */
+    void resolveUsername(String name, Callback<String> callback);
+
+    /**
+     * This function creates the conversation summaries of @param name1 and @param name2 if they do
+     * not exist yet, so the chat shows up on both dashboards.
+     */
+    void ensureConversation(String name1, String name2);
+
+    /**
+     * This function marks the chat @param owner has with @param peer as read.
+     */
+    void markRead(String owner, String peer);
+
+    /**
+     * This function hands every summary of @param owner, keyed by peer, to @param listener, and
+     * again whenever any of them changes.
+     */
+    Subscription subscribeToSummaries(String owner, Listener<HashMap<String, ConversationSummary>> listener);
+
+    /**
+     * This function returns a new, unique ID for a message in the chat between @param name1 and @param name2.
+     */
+    String newMessageId(String name1, String name2);
+
+    /**
+     * This function hands the latest @param limit messages of the chat between @param name1 and
+     * @param name2 to @param callback, oldest first. Tombstones are included.
+     */
+    void loadLatestMessages(String name1, String name2, int limit, Callback<List<Message>> callback);
+
+    /**
+     * This function hands the @param limit messages right before @param before to @param callback,
+     * oldest first. Tombstones are included, so a short page means the start of the chat.
+     */
+    void loadMessagesBefore(String name1, String name2, Message before, int limit, Callback<List<Message>> callback);
+
+    /**
+     * This function tells @param listener about every message of the chat between @param name1 and
+     * @param name2 from @param from onwards, or from the start when it is null, and about every
+     * change to them afterwards.
+     */
+    Subscription subscribeToMessages(String name1, String name2, @Nullable Message from, MessageListener listener);
+
+    /**
+     * This function sends every message in @param entries, oldest first, in a single atomic write.
+     * Both summaries of each chat and the unread counts of the recipients are updated with them.
+     * Sending the same entries again writes the same data, so a batch can be resent safely.
+     * <br><br>
+     * If the backend refuses the write for good, the error is a {@link RejectedException}. Any
+     * other error may go away if the same entries are sent again later.
+     */
+    void sendMessages(List<OutboxEntry> entries, Callback<Void> callback);
+
+    /**
+     * This function writes @param messages into the chat between @param name1 and @param name2 as
+     * they are, in a single write, overwriting any with the same ID. Unlike sending, it leaves the
+     * summaries and unread counts alone. It is used to restore a {@link ChatArchive}.
+     */
+    void importMessages(String name1, String name2, List<Message> messages, Callback<Void> callback);
+
+    /**
+     * This function deletes @param message from the chat between @param name1 and @param name2, and
+     * points both summaries at @param newLatest, or clears them when it is null. If @param tombstone
+     * is true, the message is kept as a tombstone instead of being removed. If the recipient of the
+     * message had not read it yet, it stops counting as unread in the same write.
+     */
+    void deleteMessage(String name1, String name2, Message message, @Nullable Message newLatest,
+                       boolean tombstone, Callback<Void> callback);
+
+    /**
+     * This function tells @param listener whether we are connected to the backend, and again
+     * whenever that changes.
+     */
+    Subscription subscribeToConnection(Listener<Boolean> listener);
+
+    interface Callback<T> {
+        /**
+         * Exactly one of @param result and @param error is set, unless the result itself is null.
+         */
+        void onComplete(@Nullable T result, @Nullable Exception error);
+    }
+
+    interface Listener<T> {
+        void onChanged(T value);
+
+        void onError(Exception error);
+    }
+
+    interface MessageListener {
+        /**
+         * A message was added or changed. Deleted messages come in as tombstones.
+         */
+        void onMessageChanged(Message message);
+
+        void onMessageRemoved(String id);
+
+        void onError(Exception error);
+    }
+
+    interface Subscription {
+        /**
+         * No more events are delivered once this has been called.
+         */
+        void cancel();
+    }
+
+    /**
+     * This exception means the backend refused a write, for instance because it is not allowed or
+     * the data is not valid. The same write would be refused again, so it should not be retried.
+     */
+    class RejectedException extends Exception {
+        public RejectedException(String message, @Nullable Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.numad.firesidechat;
+
+/**
+ * This class works out which conversation two users share.
+ */
+public final class ConversationIds {
+
+    private ConversationIds() {
+    }
+
+    /**
+     * This function returns the ID of the conversation between @param name1 and @param name2.
+     * It is the same whichever order the names are passed in. The length of the first name is put
+     * in front so that two different pairs of names can never end up with the same ID.
+     */
+    public static String conversationId(String name1, String name2) {
+        String first = name1.compareTo(name2) <= 0 ? name1 : name2;
+        String second = first.equals(name1) ? name2 : name1;
+        return first.length() + "_" + first + "_" + second;
+    }
+}
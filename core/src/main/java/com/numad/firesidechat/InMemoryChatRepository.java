@@ -0,0 +1,527 @@
+package com.numad.firesidechat;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is a {@link ChatRepository} that keeps everything in memory. It has no Android or
+ * Firebase dependencies, so the data paths of the app can be benchmarked and load tested with it on
+ * any JVM.
+ * <br><br>
+ * Every operation is delayed by {@code latencyMs} plus a random amount up to {@code jitterMs}, and
+ * fails with an {@link IOException} with probability {@code failureRate}, to mimic a real network.
+ * Failures can also be switched on and off while running with {@link #setFailureRate(double)}, and
+ * the connection with {@link #setConnected(boolean)}. Like Firebase, operations made while
+ * disconnected wait, in order, until the connection comes back, and only then run.
+ * <br><br>
+ * It is safe to use from any number of threads. All the data is guarded by one lock, and results
+ * and events are handed to the callback executor given to the constructor, outside the lock.
+ */
+public class InMemoryChatRepository implements ChatRepository {
+    private final Executor callbackExecutor;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "InMemoryChatRepository");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final long latencyMs;
+    private final long jitterMs;
+    private final Random random;
+    private final AtomicLong nextMessageId = new AtomicLong();
+    private volatile double failureRate;
+
+    private final Object lock = new Object();
+    // Everything below is guarded by lock
+    private final HashMap<String, User> users = new HashMap<>();
+    private final TreeMap<String, TreeSet<String>> usernameIndex = new TreeMap<>();
+    private final HashMap<String, HashMap<String, ConversationSummary>> summaries = new HashMap<>();
+    // The IDs of the unread messages behind each summary, by owner and then peer
+    private final HashMap<String, HashMap<String, HashSet<String>>> unreadMessages = new HashMap<>();
+    private final HashMap<String, Conversation> conversations = new HashMap<>();
+    private final HashMap<String, List<SummarySubscription>> summarySubscriptions = new HashMap<>();
+    private final List<ConnectionSubscription> connectionSubscriptions = new ArrayList<>();
+    // Operations made while disconnected, run once the connection comes back
+    private final List<Runnable> waitingForConnection = new ArrayList<>();
+    private boolean connected = true;
+
+    /**
+     * This constructor creates a repository that answers straight away and never fails.
+     */
+    public InMemoryChatRepository(Executor callbackExecutor) {
+        this(callbackExecutor, 0, 0, 0, 0);
+    }
+
+    public InMemoryChatRepository(Executor callbackExecutor, long latencyMs, long jitterMs,
+                                  double failureRate, long seed) {
+        this.callbackExecutor = callbackExecutor;
+        this.latencyMs = latencyMs;
+        this.jitterMs = jitterMs;
+        this.failureRate = failureRate;
+        this.random = new Random(seed);
+    }
+
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * This function connects or disconnects the repository. Once it is connected again, every
+     * operation that was waiting for the connection is run.
+     */
+    public void setConnected(boolean connected) {
+        List<Runnable> events = new ArrayList<>();
+        List<Runnable> waiting = new ArrayList<>();
+        synchronized (lock) {
+            this.connected = connected;
+            for (ConnectionSubscription subscription : connectionSubscriptions) {
+                events.add(() -> subscription.deliver(connected));
+            }
+            if (connected) {
+                waiting.addAll(waitingForConnection);
+                waitingForConnection.clear();
+            }
+        }
+        deliverAll(events);
+        for (Runnable operation : waiting) {
+            operation.run();
+        }
+    }
+
+    @Override
+    public void prepareUser(String username) {
+        // Nothing is ever stored in an older layout here.
+    }
+
+    @Override
+    public void getUser(String name, Callback<User> callback) {
+        run(events -> users.get(name), callback);
+    }
+
+    @Override
+    public void saveUser(String name, User user, Callback<Void> callback) {
+        run(events -> {
+            users.put(name, user);
+            TreeSet<String> names = usernameIndex.get(normalizeUsername(name));
+            if (names == null) {
+                names = new TreeSet<>();
+                usernameIndex.put(normalizeUsername(name), names);
+            }
+            names.add(name);
+            return null;
+        }, callback);
+    }
+
+    @Override
+    public void findUsernames(String prefix, int limit, Callback<List<String>> callback) {
+        String key = normalizeUsername(prefix);
+        run(events -> {
+            List<String> names = new ArrayList<>();
+            int entries = 0;
+            for (Map.Entry<String, TreeSet<String>> entry : usernameIndex.tailMap(key, true).entrySet()) {
+                if (!entry.getKey().startsWith(key) || entries++ == limit) {
+                    break;
+                }
+                names.addAll(entry.getValue());
+            }
+            return names;
+        }, callback);
+    }
+
+    @Override
+    public void resolveUsername(String name, Callback<String> callback) {
+        run(events -> {
+            TreeSet<String> names = usernameIndex.get(normalizeUsername(name));
+            if (names == null) {
+                return null;
+            }
+            return names.contains(name) ? name : names.first();
+        }, callback);
+    }
+
+    @Override
+    public void ensureConversation(String name1, String name2) {
+        run(events -> {
+            for (String[] pair : new String[][]{{name1, name2}, {name2, name1}}) {
+                HashMap<String, ConversationSummary> ownerSummaries = summariesOf(pair[0]);
+                if (!ownerSummaries.containsKey(pair[1])) {
+                    ownerSummaries.put(pair[1], new ConversationSummary(pair[1], "", 0, 0,
+                            ConversationIds.conversationId(pair[0], pair[1])));
+                    notifySummaries(pair[0], events);
+                }
+            }
+            return null;
+        }, null);
+    }
+
+    @Override
+    public void markRead(String owner, String peer) {
+        run(events -> {
+            unreadOf(owner, peer).clear();
+            updateUnreadCount(owner, peer, 0, events);
+            return null;
+        }, null);
+    }
+
+    @Override
+    public Subscription subscribeToSummaries(String owner, Listener<HashMap<String, ConversationSummary>> listener) {
+        SummarySubscription subscription = new SummarySubscription(listener);
+        run(events -> {
+            if (subscription.cancelled) {
+                return null;
+            }
+            List<SummarySubscription> subscriptions = summarySubscriptions.get(owner);
+            if (subscriptions == null) {
+                subscriptions = new ArrayList<>();
+                summarySubscriptions.put(owner, subscriptions);
+            }
+            subscriptions.add(subscription);
+            HashMap<String, ConversationSummary> current = new HashMap<>(summariesOf(owner));
+            events.add(() -> subscription.deliver(current));
+            return null;
+        }, (result, error) -> {
+            if (error != null && !subscription.cancelled) {
+                listener.onError(error);
+            }
+        });
+        return () -> {
+            subscription.cancelled = true;
+            synchronized (lock) {
+                List<SummarySubscription> subscriptions = summarySubscriptions.get(owner);
+                if (subscriptions != null) {
+                    subscriptions.remove(subscription);
+                }
+            }
+        };
+    }
+
+    @Override
+    public String newMessageId(String name1, String name2) {
+        // Zero padded, so the IDs sort in the order they were handed out, like push keys
+        return String.format(Locale.ROOT, "m%019d", nextMessageId.incrementAndGet());
+    }
+
+    @Override
+    public void loadLatestMessages(String name1, String name2, int limit, Callback<List<Message>> callback) {
+        String conversationId = ConversationIds.conversationId(name1, name2);
+        run(events -> conversationOf(conversationId).messages.latest(limit), callback);
+    }
+
+    @Override
+    public void loadMessagesBefore(String name1, String name2, Message before, int limit, Callback<List<Message>> callback) {
+        String conversationId = ConversationIds.conversationId(name1, name2);
+        run(events -> conversationOf(conversationId).messages.before(before, limit), callback);
+    }
+
+    @Override
+    public Subscription subscribeToMessages(String name1, String name2, @Nullable Message from, MessageListener listener) {
+        String conversationId = ConversationIds.conversationId(name1, name2);
+        MessageSubscription subscription = new MessageSubscription(from, listener);
+        run(events -> {
+            if (subscription.cancelled) {
+                return null;
+            }
+            Conversation conversation = conversationOf(conversationId);
+            conversation.subscriptions.add(subscription);
+            for (Message message : conversation.messages.from(from)) {
+                events.add(() -> subscription.deliverChanged(message));
+            }
+            return null;
+        }, (result, error) -> {
+            if (error != null && !subscription.cancelled) {
+                listener.onError(error);
+            }
+        });
+        return () -> {
+            subscription.cancelled = true;
+            synchronized (lock) {
+                conversationOf(conversationId).subscriptions.remove(subscription);
+            }
+        };
+    }
+
+    @Override
+    public void sendMessages(List<OutboxEntry> entries, Callback<Void> callback) {
+        run(events -> {
+            for (OutboxEntry entry : entries) {
+                Message message = entry.getMessage();
+                String sender = message.getSender();
+                String recipient = entry.getRecipient();
+                putMessage(ConversationIds.conversationId(sender, recipient), message, events);
+
+                unreadOf(recipient, sender).add(message.getId());
+                putPreview(sender, recipient, message, events);
+                putPreview(recipient, sender, message, events);
+            }
+            return null;
+        }, callback);
+    }
+
+    @Override
+    public void importMessages(String name1, String name2, List<Message> messages, Callback<Void> callback) {
+        String conversationId = ConversationIds.conversationId(name1, name2);
+        run(events -> {
+            for (Message message : messages) {
+                putMessage(conversationId, message, events);
+            }
+            return null;
+        }, callback);
+    }
+
+    @Override
+    public void deleteMessage(String name1, String name2, Message message, @Nullable Message newLatest,
+                              boolean tombstone, Callback<Void> callback) {
+        String conversationId = ConversationIds.conversationId(name1, name2);
+        run(events -> {
+            Conversation conversation = conversationOf(conversationId);
+            Message stored = conversation.messages.get(message.getId());
+            if (stored != null) {
+                if (tombstone) {
+                    putMessage(conversationId, new Message(stored.getId(), stored.getSender(), "",
+                            stored.getTimestamp(), true), events);
+                } else {
+                    conversation.messages.remove(stored.getId());
+                    for (MessageSubscription subscription : conversation.subscriptions) {
+                        if (subscription.covers(stored)) {
+                            events.add(() -> subscription.deliverRemoved(stored.getId()));
+                        }
+                    }
+                }
+            }
+
+            String recipient = name1.equals(message.getSender()) ? name2 : name1;
+            unreadOf(recipient, message.getSender()).remove(message.getId());
+
+            Message latest = newLatest == null ? new Message() : newLatest;
+            putPreview(name1, name2, latest, events);
+            putPreview(name2, name1, latest, events);
+            return null;
+        }, callback);
+    }
+
+    @Override
+    public Subscription subscribeToConnection(Listener<Boolean> listener) {
+        ConnectionSubscription subscription = new ConnectionSubscription(listener);
+        List<Runnable> events = new ArrayList<>();
+        synchronized (lock) {
+            connectionSubscriptions.add(subscription);
+            boolean current = connected;
+            events.add(() -> subscription.deliver(current));
+        }
+        deliverAll(events);
+        return () -> {
+            subscription.cancelled = true;
+            synchronized (lock) {
+                connectionSubscriptions.remove(subscription);
+            }
+        };
+    }
+
+    /**
+     * This is a helper function. After the simulated delay, it either fails, or runs @param operation
+     * under the lock and hands its result to @param callback, if there is one. Events the operation
+     * collects are delivered once the lock is released. While disconnected, nothing happens until
+     * the connection comes back.
+     */
+    private <T> void run(Operation<T> operation, @Nullable Callback<T> callback) {
+        synchronized (lock) {
+            if (!connected) {
+                waitingForConnection.add(() -> run(operation, callback));
+                return;
+            }
+        }
+        long delayMs;
+        boolean fail;
+        synchronized (random) {
+            delayMs = latencyMs + (jitterMs > 0 ? (long) (random.nextDouble() * jitterMs) : 0);
+            fail = random.nextDouble() < failureRate;
+        }
+        scheduler.schedule(() -> {
+            if (fail) {
+                if (callback != null) {
+                    callbackExecutor.execute(() -> callback.onComplete(null, new IOException("Injected failure")));
+                }
+                return;
+            }
+            List<Runnable> events = new ArrayList<>();
+            T result;
+            synchronized (lock) {
+                result = operation.run(events);
+            }
+            if (callback != null) {
+                events.add(() -> callback.onComplete(result, null));
+            }
+            deliverAll(events);
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void deliverAll(List<Runnable> events) {
+        if (!events.isEmpty()) {
+            callbackExecutor.execute(() -> {
+                for (Runnable event : events) {
+                    event.run();
+                }
+            });
+        }
+    }
+
+    private void putMessage(String conversationId, Message message, List<Runnable> events) {
+        Conversation conversation = conversationOf(conversationId);
+        conversation.messages.put(message);
+        for (MessageSubscription subscription : conversation.subscriptions) {
+            if (subscription.covers(message)) {
+                events.add(() -> subscription.deliverChanged(message));
+            }
+        }
+    }
+
+    /**
+     * This is a helper function. It points the summary @param owner keeps for @param peer at
+     * @param message, and counts the messages that are unread in it.
+     */
+    private void putPreview(String owner, String peer, Message message, List<Runnable> events) {
+        HashMap<String, ConversationSummary> ownerSummaries = summariesOf(owner);
+        ownerSummaries.put(peer, new ConversationSummary(peer, SummaryCalculator.preview(message.getMessage()),
+                message.getTimestamp(), unreadOf(owner, peer).size(),
+                ConversationIds.conversationId(owner, peer)));
+        notifySummaries(owner, events);
+    }
+
+    private void updateUnreadCount(String owner, String peer, int unreadCount, List<Runnable> events) {
+        HashMap<String, ConversationSummary> ownerSummaries = summariesOf(owner);
+        ConversationSummary previous = ownerSummaries.get(peer);
+        ownerSummaries.put(peer, previous == null
+                ? new ConversationSummary(peer, "", 0, unreadCount, ConversationIds.conversationId(owner, peer))
+                : new ConversationSummary(peer, previous.getLastMessage(), previous.getLastTimestamp(), unreadCount,
+                previous.getConversationId()));
+        notifySummaries(owner, events);
+    }
+
+    private void notifySummaries(String owner, List<Runnable> events) {
+        List<SummarySubscription> subscriptions = summarySubscriptions.get(owner);
+        if (subscriptions == null || subscriptions.isEmpty()) {
+            return;
+        }
+        HashMap<String, ConversationSummary> current = new HashMap<>(summariesOf(owner));
+        for (SummarySubscription subscription : subscriptions) {
+            events.add(() -> subscription.deliver(new HashMap<>(current)));
+        }
+    }
+
+    private HashMap<String, ConversationSummary> summariesOf(String owner) {
+        HashMap<String, ConversationSummary> ownerSummaries = summaries.get(owner);
+        if (ownerSummaries == null) {
+            ownerSummaries = new HashMap<>();
+            summaries.put(owner, ownerSummaries);
+        }
+        return ownerSummaries;
+    }
+
+    private HashSet<String> unreadOf(String owner, String peer) {
+        HashMap<String, HashSet<String>> ownerUnread = unreadMessages.get(owner);
+        if (ownerUnread == null) {
+            ownerUnread = new HashMap<>();
+            unreadMessages.put(owner, ownerUnread);
+        }
+        HashSet<String> unread = ownerUnread.get(peer);
+        if (unread == null) {
+            unread = new HashSet<>();
+            ownerUnread.put(peer, unread);
+        }
+        return unread;
+    }
+
+    private Conversation conversationOf(String conversationId) {
+        Conversation conversation = conversations.get(conversationId);
+        if (conversation == null) {
+            conversation = new Conversation();
+            conversations.put(conversationId, conversation);
+        }
+        return conversation;
+    }
+
+    private static String normalizeUsername(String name) {
+        return name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private interface Operation<T> {
+        T run(List<Runnable> events);
+    }
+
+    private static class Conversation {
+        final MessageList messages = new MessageList();
+        final List<MessageSubscription> subscriptions = new ArrayList<>();
+    }
+
+    private static class MessageSubscription {
+        @Nullable
+        final Message from;
+        final MessageListener listener;
+        volatile boolean cancelled;
+
+        MessageSubscription(@Nullable Message from, MessageListener listener) {
+            this.from = from;
+            this.listener = listener;
+        }
+
+        boolean covers(Message message) {
+            return from == null || MessageList.ORDER.compare(message, from) >= 0;
+        }
+
+        void deliverChanged(Message message) {
+            if (!cancelled) {
+                listener.onMessageChanged(message);
+            }
+        }
+
+        void deliverRemoved(String id) {
+            if (!cancelled) {
+                listener.onMessageRemoved(id);
+            }
+        }
+    }
+
+    private static class SummarySubscription {
+        final Listener<HashMap<String, ConversationSummary>> listener;
+        volatile boolean cancelled;
+
+        SummarySubscription(Listener<HashMap<String, ConversationSummary>> listener) {
+            this.listener = listener;
+        }
+
+        void deliver(HashMap<String, ConversationSummary> summaries) {
+            if (!cancelled) {
+                listener.onChanged(summaries);
+            }
+        }
+    }
+
+    private static class ConnectionSubscription {
+        final Listener<Boolean> listener;
+        volatile boolean cancelled;
+
+        ConnectionSubscription(Listener<Boolean> listener) {
+            this.listener = listener;
+        }
+
+        void deliver(boolean connected) {
+            if (!cancelled) {
+                listener.onChanged(connected);
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.numad.firesidechat;
+
+import java.time.LocalDate;
+
+/**
+ * This class works out which time bucket of a conversation a message is stored in.
+ * <br><br>
+ * Every bucket holds the messages of one day, in UTC, and is named after it, such as "2025-03-14".
+ * The names sort the same way as the days, so the buckets of a conversation can be walked in order
+ * by their keys.
+ */
+public final class MessageBuckets {
+    public static final long BUCKET_MILLIS = 24L * 60 * 60 * 1000;
+
+    private MessageBuckets() {
+    }
+
+    /**
+     * This function returns the name of the bucket a message sent at @param timestamp goes in.
+     */
+    public static String bucketOf(long timestamp) {
+        return LocalDate.ofEpochDay(Math.floorDiv(timestamp, BUCKET_MILLIS)).toString();
+    }
+}
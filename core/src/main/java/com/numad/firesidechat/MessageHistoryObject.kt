@@ -0,0 +1,106 @@
+package com.numad.firesidechat
+
+/**
+ * Creating some Kotlin data objects to help with the database.
+ * */
+
+/**
+ * The legacy per-user copy of a chat, as stored under messageHistory/<a>/<b>.
+ * Only read by [LegacyHistoryMigration] now.
+ * */
+data class MessageHistoryObject(
+    val notificationTracker: NotificationTracker,
+    val messagesSent: HashMap<String, Message>
+) {
+    constructor() : this(NotificationTracker(true, 0), HashMap<String, Message>())
+
+    fun incrementNotificationCount() {
+        this.notificationTracker.count++
+    }
+
+    fun markNotificationAsRead() {
+        this.notificationTracker.isRead = true
+        resetNotificationCount()
+    }
+
+    private fun resetNotificationCount() {
+        this.notificationTracker.count = 0
+    }
+
+    fun resetNotificationReadStatus() {
+        this.notificationTracker.isRead = false
+    }
+
+    /**
+     * Messages are keyed by their ID, which is the push key they were written under.
+     * */
+    fun addMessage(message: Message) {
+        this.messagesSent[message.id] = message
+    }
+
+    fun removeMessage(id: String) {
+        this.messagesSent.remove(id)
+    }
+}
+
+data class NotificationTracker(
+    var isRead: Boolean,
+    var count: Int
+) {
+    constructor() : this(true, 0)
+}
+
+/**
+ * [id] is the push key the message is stored under, so it stays the same for the life of the
+ * message and no two messages share it. A [deleted] message is a tombstone: it stays in the
+ * database without its text, so listeners see a small change instead of a removal.
+ * */
+data class Message(
+    val id: String,
+    val sender: String,
+    val message: String,
+    val timestamp: Long,
+    val deleted: Boolean
+) {
+    constructor() : this("", "", "", 0, false)
+
+    constructor(id: String, sender: String, message: String, timestamp: Long) :
+            this(id, sender, message, timestamp, false)
+
+    /**
+     * Messages written before IDs existed are read without one, so they are given their key.
+     * */
+    fun withId(id: String): Message = if (this.id == id) this else copy(id = id)
+}
+
+/**
+ * The record of a user, stored under users/<name>.
+ * */
+data class User(
+    val email: String,
+    val jwt: String
+) {
+    constructor() : this("", "")
+}
+
+/**
+ * A message waiting in the outbox to be sent to [recipient]. It only lives on the device.
+ * */
+data class OutboxEntry(
+    val recipient: String,
+    val message: Message
+)
+
+/**
+ * A small per-user record of a conversation, stored apart from the messages so the dashboard
+ * does not have to download them. [conversationId] points at the messages under conversations/.
+ * */
+data class ConversationSummary(
+    val peer: String,
+    val lastMessage: String,
+    val lastTimestamp: Long,
+    val unreadCount: Int,
+    val conversationId: String
+) {
+    constructor() : this("", "", 0, 0, "")
+}
@@ -0,0 +1,160 @@
+package com.numad.firesidechat;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * This class holds the messages of a chat in the order they are shown: by timestamp, with the
+ * message ID breaking ties. That is the same order the messages are queried in.
+ * <br><br>
+ * Messages are also kept by their ID, so adding, replacing and removing a message are all
+ * O(log n), wherever it sits in the chat.
+ * <br><br>
+ * It is not thread safe.
+ */
+public class MessageList implements Iterable<Message> {
+    public static final Comparator<Message> ORDER =
+            Comparator.comparingLong(Message::getTimestamp).thenComparing(Message::getId);
+
+    private final TreeSet<Message> ordered = new TreeSet<>(ORDER);
+    private final HashMap<String, Message> byId = new HashMap<>();
+
+    public MessageList() {
+    }
+
+    public MessageList(Iterable<Message> messages) {
+        for (Message message : messages) {
+            put(message);
+        }
+    }
+
+    /**
+     * This function adds @param message, or replaces the message with the same ID.
+     * It returns the message that was replaced, or null if there was none.
+     */
+    @Nullable
+    public Message put(Message message) {
+        Message previous = byId.put(message.getId(), message);
+        if (previous != null) {
+            ordered.remove(previous);
+        }
+        ordered.add(message);
+        return previous;
+    }
+
+    /**
+     * This function removes the message with the ID @param id and returns it, or null if there
+     * was none.
+     */
+    @Nullable
+    public Message remove(String id) {
+        Message removed = byId.remove(id);
+        if (removed != null) {
+            ordered.remove(removed);
+        }
+        return removed;
+    }
+
+    @Nullable
+    public Message get(String id) {
+        return byId.get(id);
+    }
+
+    public boolean contains(String id) {
+        return byId.containsKey(id);
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    public boolean isEmpty() {
+        return byId.isEmpty();
+    }
+
+    public void clear() {
+        byId.clear();
+        ordered.clear();
+    }
+
+    @Nullable
+    public Message oldest() {
+        return ordered.isEmpty() ? null : ordered.first();
+    }
+
+    @Nullable
+    public Message newest() {
+        return ordered.isEmpty() ? null : ordered.last();
+    }
+
+    /**
+     * This function returns the newest message other than the one with the ID @param id, or null
+     * if there is none.
+     */
+    @Nullable
+    public Message newestExcept(String id) {
+        Iterator<Message> newestFirst = ordered.descendingIterator();
+        while (newestFirst.hasNext()) {
+            Message message = newestFirst.next();
+            if (!message.getId().equals(id)) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * This function returns the latest @param limit messages, oldest first.
+     */
+    public List<Message> latest(int limit) {
+        return lastOf(ordered.descendingSet(), limit);
+    }
+
+    /**
+     * This function returns the @param limit messages right before @param before, oldest first.
+     * @param before does not need to be in the list.
+     */
+    public List<Message> before(Message before, int limit) {
+        return lastOf(ordered.headSet(before, false).descendingSet(), limit);
+    }
+
+    /**
+     * This function returns every message from @param from onwards, oldest first, or all of them
+     * when it is null. @param from does not need to be in the list.
+     */
+    public List<Message> from(@Nullable Message from) {
+        return new ArrayList<>(from == null ? ordered : ordered.tailSet(from, true));
+    }
+
+    /**
+     * This function returns a copy of all the messages, oldest first.
+     */
+    public List<Message> toList() {
+        return new ArrayList<>(ordered);
+    }
+
+    @Override
+    public Iterator<Message> iterator() {
+        return Collections.unmodifiableSet(ordered).iterator();
+    }
+
+    private static List<Message> lastOf(NavigableSet<Message> newestFirst, int limit) {
+        List<Message> messages = new ArrayList<>(Math.min(limit, newestFirst.size()));
+        for (Message message : newestFirst) {
+            if (messages.size() == limit) {
+                break;
+            }
+            messages.add(message);
+        }
+        Collections.reverse(messages);
+        return messages;
+    }
+}
@@ -0,0 +1,65 @@
+package com.numad.firesidechat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class works out what changed between two versions of a chat.
+ * <br><br>
+ * Both lists must be in {@link MessageList#ORDER}. They are then walked side by side once, so
+ * the diff takes O(n) time, rather than the O((n + m) d) of a general list diff.
+ */
+public final class MessageListDiff {
+    // Messages that are in the new list only, in order
+    public final List<Message> inserted;
+    // IDs of the messages that are in the old list only
+    public final List<String> removed;
+    // Messages whose contents changed, as they are in the new list
+    public final List<Message> changed;
+
+    private MessageListDiff(List<Message> inserted, List<String> removed, List<Message> changed) {
+        this.inserted = inserted;
+        this.removed = removed;
+        this.changed = changed;
+    }
+
+    public boolean isEmpty() {
+        return inserted.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    /**
+     * This function returns the difference between @param oldMessages and @param newMessages.
+     */
+    public static MessageListDiff compute(List<Message> oldMessages, List<Message> newMessages) {
+        List<Message> inserted = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        List<Message> changed = new ArrayList<>();
+        int oldIndex = 0;
+        int newIndex = 0;
+        while (oldIndex < oldMessages.size() && newIndex < newMessages.size()) {
+            Message oldMessage = oldMessages.get(oldIndex);
+            Message newMessage = newMessages.get(newIndex);
+            int order = MessageList.ORDER.compare(oldMessage, newMessage);
+            if (order < 0) {
+                removed.add(oldMessage.getId());
+                oldIndex++;
+            } else if (order > 0) {
+                inserted.add(newMessage);
+                newIndex++;
+            } else {
+                if (!oldMessage.equals(newMessage)) {
+                    changed.add(newMessage);
+                }
+                oldIndex++;
+                newIndex++;
+            }
+        }
+        for (; oldIndex < oldMessages.size(); oldIndex++) {
+            removed.add(oldMessages.get(oldIndex).getId());
+        }
+        for (; newIndex < newMessages.size(); newIndex++) {
+            inserted.add(newMessages.get(newIndex));
+        }
+        return new MessageListDiff(inserted, removed, changed);
+    }
+}
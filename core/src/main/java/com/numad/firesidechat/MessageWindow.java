@@ -0,0 +1,387 @@
+package com.numad.firesidechat;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * This class holds the part of a chat the {@code ChatHistoryPager} keeps in memory, and decides
+ * which pages of it to release and where the next page goes. It reads and writes nothing itself,
+ * so it can be tested on its own.
+ * <br><br>
+ * The window is made of older pages, oldest first, and the live messages after them, the ones the
+ * live subscription delivers from {@link #getLiveFrom()} onwards. At most {@code maxResidentMessages}
+ * messages are held. Older pages far above the part of the chat the user is looking at are
+ * released, and so are pages far below it once the limit is reached, leaving a gap before the live
+ * messages that is filled again from the device. The live messages themselves are kept to
+ * {@code maxLiveMessages}: the ones before that become an older page.
+ * <br><br>
+ * It also keeps the cursor for the next older page, and the oldest message held since the chat was
+ * opened, from which onwards everything is on the device.
+ * <br><br>
+ * It is not thread safe.
+ */
+public class MessageWindow {
+    // How many older pages we keep above the first visible message
+    private static final int PAGES_KEPT_ABOVE_VIEWPORT = 1;
+    // How many pages we keep below the last visible message once we hold too many messages
+    private static final int PAGES_KEPT_BELOW_VIEWPORT = 1;
+
+    private final int pageSize;
+    private final int maxResidentMessages;
+    private final int maxLiveMessages;
+
+    // Oldest page first. Each page is kept in chat order and by message ID.
+    private final ArrayDeque<MessageList> olderPages = new ArrayDeque<>();
+    private final MessageList liveMessages = new MessageList();
+
+    // Where the live messages start, once the subscription has been opened; null means the whole chat
+    @Nullable
+    private Message liveFrom;
+    // The oldest message we currently have, used as the cursor for the next older page
+    @Nullable
+    private Message cursor;
+    // The oldest message we have held since the chat was opened. Everything from it onwards is on the device.
+    @Nullable
+    private Message storedFrom;
+    // The newest older message before a stretch we released below the viewport, or null if the
+    // older pages run straight into the live messages
+    @Nullable
+    private Message gapAfter;
+    private boolean reachedStart;
+
+    public MessageWindow(int pageSize, int maxResidentMessages, int maxLiveMessages) {
+        this.pageSize = pageSize;
+        this.maxResidentMessages = maxResidentMessages;
+        this.maxLiveMessages = maxLiveMessages;
+    }
+
+    /**
+     * This function shows @param storedMessages, the latest ones on the device, until the latest
+     * page has been fetched.
+     */
+    public void showStored(List<Message> storedMessages) {
+        for (Message message : storedMessages) {
+            liveMessages.put(message);
+        }
+    }
+
+    /**
+     * This function puts @param page, the latest page fetched from the repository, in place of the
+     * live messages, dropping the deleted ones, and returns the messages kept.
+     */
+    public List<Message> setLatestPage(List<Message> page) {
+        liveMessages.clear();
+        for (Message message : page) {
+            if (!message.getDeleted()) {
+                liveMessages.put(message);
+            }
+        }
+        reachedStart = page.size() < pageSize;
+        return liveMessages.toList();
+    }
+
+    /**
+     * This function tells the window the live messages start at @param from, or at the start of the
+     * chat when it is null, and moves the cursor there.
+     */
+    public void setLiveFrom(@Nullable Message from) {
+        liveFrom = from;
+        resetCursor();
+    }
+
+    @Nullable
+    public Message getLiveFrom() {
+        return liveFrom;
+    }
+
+    public boolean hasLiveMessages() {
+        return !liveMessages.isEmpty();
+    }
+
+    public boolean containsLive(String id) {
+        return liveMessages.contains(id);
+    }
+
+    /**
+     * This function adds or replaces @param message among the live messages. If that leaves more
+     * than {@code maxLiveMessages} of them, all but the latest page become the newest older page, or
+     * are dropped if there is a gap, since they are on the device, and true is returned: the live
+     * messages then start at a new {@link #getLiveFrom()}, and the subscription has to start again
+     * from there.
+     */
+    public boolean putLive(Message message) {
+        liveMessages.put(message);
+        if (cursor == null) {
+            resetCursor();
+        }
+        if (liveMessages.size() <= maxLiveMessages) {
+            return false;
+        }
+        List<Message> messages = liveMessages.toList();
+        List<Message> trimmed = messages.subList(0, messages.size() - pageSize);
+        for (Message old : trimmed) {
+            liveMessages.remove(old.getId());
+        }
+        if (gapAfter == null) {
+            olderPages.addLast(new MessageList(trimmed));
+        }
+        liveFrom = liveMessages.oldest();
+        resetCursor();
+        return true;
+    }
+
+    /**
+     * This function removes the live message with the ID @param id, and returns whether there was one.
+     */
+    public boolean removeLive(String id) {
+        if (liveMessages.remove(id) == null) {
+            return false;
+        }
+        if (olderPages.isEmpty()) {
+            resetCursor();
+        }
+        return true;
+    }
+
+    /**
+     * This function removes the message with the ID @param id from the older pages, and returns
+     * whether there was one.
+     */
+    public boolean removeOlder(String id) {
+        for (MessageList page : olderPages) {
+            if (page.remove(id) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * This function returns the oldest message we currently have, or where the live messages start
+     * when we have no older pages.
+     */
+    @Nullable
+    public Message getCursor() {
+        return cursor;
+    }
+
+    /**
+     * This function returns the message the next older page ends right before, or null if there is
+     * no older page to load.
+     */
+    @Nullable
+    public Message nextOlderPageBefore() {
+        return reachedStart ? null : cursor;
+    }
+
+    /**
+     * This function returns whether the page right before @param before was held since the chat was
+     * opened, and so can be read back from the device.
+     */
+    public boolean isStoredBefore(Message before) {
+        return storedFrom != null && MessageList.ORDER.compare(storedFrom, before) < 0;
+    }
+
+    /**
+     * This function adds the messages of @param storedMessages, read back from the device, as the
+     * oldest page. Only the ones we held since the chat was opened are used, as the device may have
+     * gaps before them. It returns false if none were left, in which case the page has to be fetched.
+     */
+    public boolean addStoredOlderPage(List<Message> storedMessages) {
+        MessageList page = new MessageList();
+        for (Message message : storedMessages) {
+            if (storedFrom != null && MessageList.ORDER.compare(message, storedFrom) >= 0) {
+                page.put(message);
+            }
+        }
+        if (page.isEmpty()) {
+            return false;
+        }
+        olderPages.addFirst(page);
+        resetCursor();
+        return true;
+    }
+
+    /**
+     * This function adds @param olderMessages, a page fetched from the repository, as the oldest
+     * page, dropping the deleted ones, and returns the messages kept. If all of them were deleted and
+     * the chat goes on before them, the cursor moves to the oldest of them so the next page carries on
+     * from there.
+     */
+    public List<Message> addFetchedOlderPage(List<Message> olderMessages) {
+        MessageList page = new MessageList();
+        for (Message message : olderMessages) {
+            if (!message.getDeleted()) {
+                page.put(message);
+            }
+        }
+        reachedStart = olderMessages.size() < pageSize;
+        if (!page.isEmpty()) {
+            olderPages.addFirst(page);
+            resetCursor();
+        } else if (!reachedStart) {
+            cursor = olderMessages.get(0);
+        }
+        return page.toList();
+    }
+
+    public boolean hasReachedStart() {
+        return reachedStart;
+    }
+
+    /**
+     * This function returns the message the gap starts after, or null if there is no gap.
+     */
+    @Nullable
+    public Message getGapAfter() {
+        return gapAfter;
+    }
+
+    /**
+     * This function returns whether the rows from @param firstVisiblePosition to
+     * @param lastVisiblePosition are within @param distance rows of the gap.
+     */
+    public boolean isNearGap(int firstVisiblePosition, int lastVisiblePosition, int distance) {
+        if (gapAfter == null) {
+            return false;
+        }
+        // The gap sits right after the older pages
+        int gapPosition = olderPagesSize();
+        return lastVisiblePosition >= gapPosition - distance && firstVisiblePosition <= gapPosition + distance;
+    }
+
+    /**
+     * This function adds @param storedMessages, the page read back from the device right after
+     * @param after, to the end of the older pages, and closes the gap once it reaches the live
+     * messages. It returns false, changing nothing, if the gap no longer starts after @param after.
+     */
+    public boolean addNewerPage(Message after, List<Message> storedMessages) {
+        if (gapAfter != after) {
+            return false;
+        }
+        Message liveOldest = liveMessages.oldest();
+        MessageList page = new MessageList();
+        boolean closed = storedMessages.size() < pageSize;
+        for (Message message : storedMessages) {
+            if (liveOldest != null && MessageList.ORDER.compare(message, liveOldest) >= 0) {
+                closed = true;
+                break;
+            }
+            page.put(message);
+        }
+        if (!page.isEmpty()) {
+            olderPages.addLast(page);
+        }
+        gapAfter = closed ? null : page.newest();
+        return true;
+    }
+
+    /**
+     * This function drops the oldest pages while they are more than {@link #PAGES_KEPT_ABOVE_VIEWPORT}
+     * pages above @param firstVisiblePosition, and returns whether any were dropped.
+     */
+    public boolean releasePagesAbove(int firstVisiblePosition) {
+        // With a gap below them, every older page can go, the live messages carry on by themselves
+        int pagesKept = gapAfter == null ? 1 : 0;
+        int released = 0;
+        while (olderPages.size() > pagesKept
+                && released + olderPages.peekFirst().size() + pageSize * PAGES_KEPT_ABOVE_VIEWPORT <= firstVisiblePosition) {
+            released += olderPages.removeFirst().size();
+        }
+        if (released == 0) {
+            return false;
+        }
+        if (olderPages.isEmpty()) {
+            gapAfter = null;
+        }
+        reachedStart = false;
+        resetCursor();
+        return true;
+    }
+
+    /**
+     * This function drops the newest older pages while more than {@code maxResidentMessages} messages
+     * are held and they are more than {@link #PAGES_KEPT_BELOW_VIEWPORT} pages below
+     * @param lastVisiblePosition, and returns whether any were dropped.
+     */
+    public boolean releasePagesBelow(int lastVisiblePosition) {
+        int olderSize = olderPagesSize();
+        int resident = olderSize + liveMessages.size();
+        boolean released = false;
+        while (resident > maxResidentMessages && olderPages.size() > 1) {
+            int newestPageSize = olderPages.peekLast().size();
+            if (olderSize - newestPageSize < lastVisiblePosition + pageSize * PAGES_KEPT_BELOW_VIEWPORT) {
+                break;
+            }
+            olderPages.removeLast();
+            olderSize -= newestPageSize;
+            resident -= newestPageSize;
+            released = true;
+        }
+        if (released) {
+            gapAfter = olderPages.peekLast().newest();
+        }
+        return released;
+    }
+
+    /**
+     * This function returns the newest message we hold other than the one with the ID @param id,
+     * or null if there is none.
+     */
+    @Nullable
+    public Message latestMessageExcept(String id) {
+        Message latest = liveMessages.newestExcept(id);
+        Iterator<MessageList> pages = olderPages.descendingIterator();
+        while (latest == null && pages.hasNext()) {
+            latest = pages.next().newestExcept(id);
+        }
+        return latest;
+    }
+
+    /**
+     * This function points the cursor at the oldest message we currently have. Without older pages,
+     * that is where the live messages start, which may be a deleted message we do not hold.
+     */
+    public void resetCursor() {
+        if (!olderPages.isEmpty()) {
+            cursor = olderPages.peekFirst().oldest();
+        } else {
+            cursor = liveFrom != null ? liveFrom : liveMessages.oldest();
+        }
+        if (cursor != null && (storedFrom == null || MessageList.ORDER.compare(cursor, storedFrom) < 0)) {
+            storedFrom = cursor;
+        }
+    }
+
+    /**
+     * This function returns how many messages are held.
+     */
+    public int size() {
+        return olderPagesSize() + liveMessages.size();
+    }
+
+    /**
+     * This function adds every message held to @param messages, in chat order.
+     */
+    public void addTo(List<Message> messages) {
+        for (MessageList page : olderPages) {
+            for (Message message : page) {
+                messages.add(message);
+            }
+        }
+        for (Message message : liveMessages) {
+            messages.add(message);
+        }
+    }
+
+    private int olderPagesSize() {
+        int size = 0;
+        for (MessageList page : olderPages) {
+            size += page.size();
+        }
+        return size;
+    }
+}
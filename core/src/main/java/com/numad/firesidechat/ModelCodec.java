@@ -0,0 +1,212 @@
+package com.numad.firesidechat;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class turns the models into the plain maps, strings, numbers and booleans the database
+ * stores, and back again.
+ * <br><br>
+ * It is written by hand, field by field, so no reflection is involved. The field names are the
+ * ones the database mapper has always used for these classes, so both read and write the same data.
+ * Decoding is lenient: missing fields get the same defaults as the no-argument constructors, and
+ * anything that is not a map decodes to null.
+ */
+public final class ModelCodec {
+    public static final String ID_FIELD = "id";
+    public static final String SENDER_FIELD = "sender";
+    public static final String MESSAGE_FIELD = "message";
+    public static final String TIMESTAMP_FIELD = "timestamp";
+    public static final String DELETED_FIELD = "deleted";
+    public static final String READ_FIELD = "read";
+    public static final String COUNT_FIELD = "count";
+    public static final String NOTIFICATION_TRACKER_FIELD = "notificationTracker";
+    public static final String MESSAGES_SENT_FIELD = "messagesSent";
+    public static final String PEER_FIELD = "peer";
+    public static final String LAST_MESSAGE_FIELD = "lastMessage";
+    public static final String LAST_TIMESTAMP_FIELD = "lastTimestamp";
+    public static final String UNREAD_COUNT_FIELD = "unreadCount";
+    public static final String UNREAD_MESSAGES_FIELD = "unreadMessages";
+    public static final String CONVERSATION_ID_FIELD = "conversationId";
+    public static final String EMAIL_FIELD = "email";
+    public static final String JWT_FIELD = "jwt";
+
+    private ModelCodec() {
+    }
+
+    public static Map<String, Object> encodeMessage(Message message) {
+        Map<String, Object> fields = new HashMap<>(8);
+        fields.put(ID_FIELD, message.getId());
+        fields.put(SENDER_FIELD, message.getSender());
+        fields.put(MESSAGE_FIELD, message.getMessage());
+        fields.put(TIMESTAMP_FIELD, message.getTimestamp());
+        fields.put(DELETED_FIELD, message.getDeleted());
+        return fields;
+    }
+
+    /**
+     * This function decodes the message stored under @param key. Messages written before IDs
+     * existed have none stored, so they are given their key.
+     */
+    @Nullable
+    public static Message decodeMessage(String key, @Nullable Object value) {
+        Map<?, ?> fields = asMap(value);
+        if (fields == null) {
+            return null;
+        }
+        return new Message(key,
+                getString(fields, SENDER_FIELD),
+                getString(fields, MESSAGE_FIELD),
+                getLong(fields, TIMESTAMP_FIELD),
+                getBoolean(fields, DELETED_FIELD, false));
+    }
+
+    /**
+     * This function decodes every message of @param value, a map from key to message, in no
+     * particular order.
+     */
+    public static List<Message> decodeMessages(@Nullable Object value) {
+        Map<?, ?> messages = asMap(value);
+        if (messages == null) {
+            return new ArrayList<>();
+        }
+        List<Message> decoded = new ArrayList<>(messages.size());
+        for (Map.Entry<?, ?> entry : messages.entrySet()) {
+            Message message = decodeMessage(String.valueOf(entry.getKey()), entry.getValue());
+            if (message != null) {
+                decoded.add(message);
+            }
+        }
+        return decoded;
+    }
+
+    public static Map<String, Object> encodeNotificationTracker(NotificationTracker tracker) {
+        Map<String, Object> fields = new HashMap<>(4);
+        fields.put(READ_FIELD, tracker.isRead());
+        fields.put(COUNT_FIELD, tracker.getCount());
+        return fields;
+    }
+
+    @Nullable
+    public static NotificationTracker decodeNotificationTracker(@Nullable Object value) {
+        Map<?, ?> fields = asMap(value);
+        if (fields == null) {
+            return null;
+        }
+        return new NotificationTracker(getBoolean(fields, READ_FIELD, true), (int) getLong(fields, COUNT_FIELD));
+    }
+
+    public static Map<String, Object> encodeMessageHistory(MessageHistoryObject history) {
+        Map<String, Object> messages = new HashMap<>(history.getMessagesSent().size() * 2);
+        for (Map.Entry<String, Message> entry : history.getMessagesSent().entrySet()) {
+            messages.put(entry.getKey(), encodeMessage(entry.getValue()));
+        }
+        Map<String, Object> fields = new HashMap<>(4);
+        fields.put(NOTIFICATION_TRACKER_FIELD, encodeNotificationTracker(history.getNotificationTracker()));
+        fields.put(MESSAGES_SENT_FIELD, messages);
+        return fields;
+    }
+
+    @Nullable
+    public static MessageHistoryObject decodeMessageHistory(@Nullable Object value) {
+        Map<?, ?> fields = asMap(value);
+        if (fields == null) {
+            return null;
+        }
+        NotificationTracker tracker = decodeNotificationTracker(fields.get(NOTIFICATION_TRACKER_FIELD));
+        HashMap<String, Message> messages = new HashMap<>();
+        for (Message message : decodeMessages(fields.get(MESSAGES_SENT_FIELD))) {
+            messages.put(message.getId(), message);
+        }
+        return new MessageHistoryObject(tracker == null ? new NotificationTracker() : tracker, messages);
+    }
+
+    public static Map<String, Object> encodeUser(User user) {
+        Map<String, Object> fields = new HashMap<>(4);
+        fields.put(EMAIL_FIELD, user.getEmail());
+        fields.put(JWT_FIELD, user.getJwt());
+        return fields;
+    }
+
+    @Nullable
+    public static User decodeUser(@Nullable Object value) {
+        Map<?, ?> fields = asMap(value);
+        if (fields == null) {
+            return null;
+        }
+        return new User(getString(fields, EMAIL_FIELD), getString(fields, JWT_FIELD));
+    }
+
+    public static Map<String, Object> encodeSummary(ConversationSummary summary) {
+        Map<String, Object> fields = new HashMap<>(8);
+        fields.put(PEER_FIELD, summary.getPeer());
+        fields.put(LAST_MESSAGE_FIELD, summary.getLastMessage());
+        fields.put(LAST_TIMESTAMP_FIELD, summary.getLastTimestamp());
+        fields.put(UNREAD_COUNT_FIELD, summary.getUnreadCount());
+        fields.put(CONVERSATION_ID_FIELD, summary.getConversationId());
+        return fields;
+    }
+
+    /**
+     * This function decodes a summary. Unread messages are listed by ID under
+     * {@link #UNREAD_MESSAGES_FIELD}, so sending or deleting one twice counts it once. Summaries
+     * written before that hold a plain count instead, and the two are added up.
+     */
+    @Nullable
+    public static ConversationSummary decodeSummary(@Nullable Object value) {
+        Map<?, ?> fields = asMap(value);
+        if (fields == null) {
+            return null;
+        }
+        Map<?, ?> unreadMessages = asMap(fields.get(UNREAD_MESSAGES_FIELD));
+        int unreadCount = (int) getLong(fields, UNREAD_COUNT_FIELD) + (unreadMessages == null ? 0 : unreadMessages.size());
+        return new ConversationSummary(
+                getString(fields, PEER_FIELD),
+                getString(fields, LAST_MESSAGE_FIELD),
+                getLong(fields, LAST_TIMESTAMP_FIELD),
+                unreadCount,
+                getString(fields, CONVERSATION_ID_FIELD));
+    }
+
+    /**
+     * This function decodes every summary of @param value, a map from peer to summary, keyed by peer.
+     */
+    public static HashMap<String, ConversationSummary> decodeSummaries(@Nullable Object value) {
+        Map<?, ?> summaries = asMap(value);
+        HashMap<String, ConversationSummary> decoded = new HashMap<>();
+        if (summaries == null) {
+            return decoded;
+        }
+        for (Map.Entry<?, ?> entry : summaries.entrySet()) {
+            ConversationSummary summary = decodeSummary(entry.getValue());
+            if (summary != null) {
+                decoded.put(String.valueOf(entry.getKey()), summary);
+            }
+        }
+        return decoded;
+    }
+
+    @Nullable
+    private static Map<?, ?> asMap(@Nullable Object value) {
+        return value instanceof Map ? (Map<?, ?>) value : null;
+    }
+
+    private static String getString(Map<?, ?> fields, String name) {
+        Object value = fields.get(name);
+        return value == null ? "" : value.toString();
+    }
+
+    private static long getLong(Map<?, ?> fields, String name) {
+        Object value = fields.get(name);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static boolean getBoolean(Map<?, ?> fields, String name, boolean defaultValue) {
+        Object value = fields.get(name);
+        return value instanceof Boolean ? (Boolean) value : defaultValue;
+    }
+}
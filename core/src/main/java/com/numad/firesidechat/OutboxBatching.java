@@ -0,0 +1,106 @@
+package com.numad.firesidechat;
+
+/**
+ * This class decides how many messages the {@code Outbox} sends in one batch, and how long it waits
+ * before it sends a batch that failed again.
+ * <br><br>
+ * Batches hold up to {@code batchSize} messages. When a batch of several messages is refused for
+ * good, its messages are sent one at a time, so the ones that are refused on their own can be told
+ * apart from the others. Once every message of that batch has been sent, or given up on, full
+ * batches are sent again.
+ * <br><br>
+ * A batch that failed for any other reason is retried after a delay that doubles every time, up to
+ * {@code maxRetryDelayMs}, and goes back to {@code initialRetryDelayMs} once a batch gets through or
+ * the connection comes back.
+ * <br><br>
+ * It is not thread safe.
+ */
+public class OutboxBatching {
+    private final int batchSize;
+    private final long initialRetryDelayMs;
+    private final long maxRetryDelayMs;
+
+    // 1 while we send a refused batch one message at a time, to find the ones that are refused
+    private int batchLimit;
+    // How many messages of the refused batch are left to send one at a time
+    private int messagesLeftToIsolate;
+    private long retryDelayMs;
+
+    public OutboxBatching(int batchSize, long initialRetryDelayMs, long maxRetryDelayMs) {
+        this.batchSize = batchSize;
+        this.initialRetryDelayMs = initialRetryDelayMs;
+        this.maxRetryDelayMs = maxRetryDelayMs;
+        this.batchLimit = batchSize;
+        this.retryDelayMs = initialRetryDelayMs;
+    }
+
+    /**
+     * This function returns how many messages the next batch may hold.
+     */
+    public int getBatchLimit() {
+        return batchLimit;
+    }
+
+    /**
+     * This function is to be called once a batch of @param count messages has been sent.
+     */
+    public void onSent(int count) {
+        retryDelayMs = initialRetryDelayMs;
+        onIsolated(count);
+    }
+
+    /**
+     * This function is to be called once a batch of @param count messages has been refused for good.
+     * It returns true if the messages are to be sent again one at a time, and false if the batch was a
+     * single message, which is to be given up on.
+     */
+    public boolean onRejected(int count) {
+        if (count > 1) {
+            batchLimit = 1;
+            messagesLeftToIsolate = count;
+            return true;
+        }
+        onIsolated(1);
+        return false;
+    }
+
+    /**
+     * This function is to be called once a batch failed for any other reason. It returns how long to
+     * wait before sending it again, and doubles that for the next time.
+     */
+    public long onFailed() {
+        long delayMs = retryDelayMs;
+        retryDelayMs = Math.min(retryDelayMs * 2, maxRetryDelayMs);
+        return delayMs;
+    }
+
+    /**
+     * This function is to be called when the connection comes back, so the next failure is retried
+     * soon again.
+     */
+    public void onConnected() {
+        retryDelayMs = initialRetryDelayMs;
+    }
+
+    /**
+     * This function goes back to full batches, forgetting any refused batch. It is called when the
+     * outbox is cleared.
+     */
+    public void reset() {
+        batchLimit = batchSize;
+        messagesLeftToIsolate = 0;
+    }
+
+    /**
+     * This is a helper function. It goes back to full batches once every message of a refused batch
+     * has been sent, or given up on, on its own.
+     */
+    private void onIsolated(int count) {
+        if (batchLimit == 1) {
+            messagesLeftToIsolate -= count;
+            if (messagesLeftToIsolate <= 0) {
+                batchLimit = batchSize;
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.numad.firesidechat;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class hands out every live subscription the screens hold on the {@link ChatRepository}.
+ * <br><br>
+ * Observers of the same data share one underlying subscription. It is opened for the first
+ * observer, counted up and down as observers come and go, and cancelled when the last one leaves.
+ * Observers that join late are caught up from what the shared subscription has already seen, so
+ * they do not have to wait for the next change.
+ * <br><br>
+ * Every observer cancels the subscription it is handed once it is done. The screens' state lives in
+ * ViewModels, whose LiveData stop listening once no started screen observes them, and which cancel
+ * whatever is left when they are cleared, so a screen that is left can no longer keep a listener
+ * alive.
+ * <br><br>
+ * It is only used from the main thread, where the repository calls back. The app shares one, handed
+ * out by {@code ChatRepositories.getRegistry()}.
+ */
+public class SubscriptionRegistry {
+    private static final String SUMMARIES_KEY = "summaries/";
+    private static final String MESSAGES_KEY = "messages/";
+    private static final String CONNECTION_KEY = "connection";
+
+    private final ChatRepository repository;
+    private final Map<String, Shared<?>> shared = new HashMap<>();
+
+    public SubscriptionRegistry(ChatRepository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * This function hands the conversation summaries of @param user to @param listener until the
+     * returned subscription is cancelled.
+     */
+    public ChatRepository.Subscription observeSummaries(String user,
+                                                        ChatRepository.Listener<HashMap<String, ConversationSummary>> listener) {
+        return observe(SUMMARIES_KEY + user, new ListenerObserver<>(listener),
+                () -> new SharedValue<HashMap<String, ConversationSummary>>() {
+                    @Override
+                    ChatRepository.Subscription open() {
+                        return repository.subscribeToSummaries(user, this);
+                    }
+                });
+    }
+
+    /**
+     * This function hands every message between @param name1 and @param name2 from @param from
+     * onwards, or the whole chat when it is null, to @param listener until the returned
+     * subscription is cancelled.
+     */
+    public ChatRepository.Subscription observeMessages(String name1, String name2, @Nullable Message from,
+                                                       ChatRepository.MessageListener listener) {
+        String key = MESSAGES_KEY + ConversationIds.conversationId(name1, name2)
+                + (from == null ? "" : "/" + from.getTimestamp() + "/" + from.getId());
+        return observe(key, new MessageObserver(listener), () -> new SharedMessages() {
+            @Override
+            ChatRepository.Subscription open() {
+                return repository.subscribeToMessages(name1, name2, from, this);
+            }
+        });
+    }
+
+    /**
+     * This function tells @param listener whether we are connected to the backend until the
+     * returned subscription is cancelled.
+     */
+    public ChatRepository.Subscription observeConnection(ChatRepository.Listener<Boolean> listener) {
+        return observe(CONNECTION_KEY, new ListenerObserver<>(listener), () -> new SharedValue<Boolean>() {
+            @Override
+            ChatRepository.Subscription open() {
+                return repository.subscribeToConnection(this);
+            }
+        });
+    }
+
+    /**
+     * This is a helper function. It adds @param observer to the subscription stored under @param key,
+     * opening one made by @param factory if there is none yet, and removes it again when the returned
+     * subscription is cancelled.
+     */
+    @SuppressWarnings("unchecked")
+    private <O> ChatRepository.Subscription observe(String key, O observer, Factory<O> factory) {
+        Shared<O> subscription = (Shared<O>) shared.get(key);
+        boolean opened = subscription == null;
+        if (opened) {
+            subscription = factory.create();
+            shared.put(key, subscription);
+        }
+        Shared<O> target = subscription;
+        target.observers.add(observer);
+        if (opened) {
+            target.subscription = target.open();
+        } else {
+            target.catchUp(observer);
+        }
+
+        return new Registration(key, target, observer);
+    }
+
+    private interface Factory<O> {
+        Shared<O> create();
+    }
+
+    /**
+     * One observer of a shared subscription. Cancelling it more than once does nothing.
+     */
+    private final class Registration implements ChatRepository.Subscription {
+        private final String key;
+        private final Shared<?> target;
+        private final Object observer;
+        private boolean cancelled;
+
+        Registration(String key, Shared<?> target, Object observer) {
+            this.key = key;
+            this.target = target;
+            this.observer = observer;
+        }
+
+        @Override
+        public void cancel() {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            target.observers.remove(observer);
+            if (target.observers.isEmpty() && shared.get(key) == target) {
+                shared.remove(key);
+                if (target.subscription != null) {
+                    target.subscription.cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * One underlying subscription and the observers it is shared between.
+     */
+    private abstract static class Shared<O> {
+        final List<O> observers = new ArrayList<>();
+        @Nullable
+        ChatRepository.Subscription subscription;
+
+        abstract ChatRepository.Subscription open();
+
+        /**
+         * This function hands what has been seen so far to @param observer, which has just joined.
+         */
+        abstract void catchUp(O observer);
+
+        /**
+         * This function returns a copy of the observers, so they can leave while being called.
+         */
+        List<O> snapshot() {
+            return new ArrayList<>(observers);
+        }
+    }
+
+    private static final class ListenerObserver<T> {
+        final ChatRepository.Listener<T> listener;
+
+        ListenerObserver(ChatRepository.Listener<T> listener) {
+            this.listener = listener;
+        }
+    }
+
+    private static final class MessageObserver {
+        final ChatRepository.MessageListener listener;
+
+        MessageObserver(ChatRepository.MessageListener listener) {
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * A subscription to a single value. The latest value is kept to catch late observers up.
+     */
+    private abstract static class SharedValue<T> extends Shared<ListenerObserver<T>> implements ChatRepository.Listener<T> {
+        private boolean hasValue;
+        @Nullable
+        private T value;
+
+        @Override
+        public void onChanged(T value) {
+            this.value = value;
+            hasValue = true;
+            for (ListenerObserver<T> observer : snapshot()) {
+                observer.listener.onChanged(value);
+            }
+        }
+
+        @Override
+        public void onError(Exception error) {
+            for (ListenerObserver<T> observer : snapshot()) {
+                observer.listener.onError(error);
+            }
+        }
+
+        @Override
+        void catchUp(ListenerObserver<T> observer) {
+            if (hasValue) {
+                observer.listener.onChanged(value);
+            }
+        }
+    }
+
+    /**
+     * A subscription to the messages of a chat. The messages seen so far are kept to catch late
+     * observers up, the same way the repository itself would replay them to a new listener.
+     */
+    private abstract static class SharedMessages extends Shared<MessageObserver> implements ChatRepository.MessageListener {
+        private final MessageList messages = new MessageList();
+
+        @Override
+        public void onMessageChanged(Message message) {
+            messages.put(message);
+            for (MessageObserver observer : snapshot()) {
+                observer.listener.onMessageChanged(message);
+            }
+        }
+
+        @Override
+        public void onMessageRemoved(String id) {
+            messages.remove(id);
+            for (MessageObserver observer : snapshot()) {
+                observer.listener.onMessageRemoved(id);
+            }
+        }
+
+        @Override
+        public void onError(Exception error) {
+            for (MessageObserver observer : snapshot()) {
+                observer.listener.onError(error);
+            }
+        }
+
+        @Override
+        void catchUp(MessageObserver observer) {
+            for (Message message : messages.toList()) {
+                observer.listener.onMessageChanged(message);
+            }
+        }
+    }
+}
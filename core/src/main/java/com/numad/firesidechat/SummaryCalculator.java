@@ -0,0 +1,47 @@
+package com.numad.firesidechat;
+
+/**
+ * This class works out what the summary of a conversation should say.
+ */
+public final class SummaryCalculator {
+    // Long messages are cut down to this many characters in the summary
+    public static final int PREVIEW_LENGTH = 100;
+
+    private SummaryCalculator() {
+    }
+
+    /**
+     * This function returns @param message cut down to {@link #PREVIEW_LENGTH} characters.
+     */
+    public static String preview(String message) {
+        return message.length() > PREVIEW_LENGTH ? message.substring(0, PREVIEW_LENGTH) : message;
+    }
+
+    /**
+     * This function works out the summary @param owner keeps of their chat with @param peer from
+     * all of its @param messages. Messages from @param peer sent after @param lastReadTimestamp
+     * count as unread. Tombstones are skipped.
+     */
+    public static ConversationSummary summarize(String owner, String peer, Iterable<Message> messages,
+                                                long lastReadTimestamp) {
+        Message latest = null;
+        int unreadCount = 0;
+        for (Message message : messages) {
+            if (message.getDeleted()) {
+                continue;
+            }
+            if (latest == null || MessageList.ORDER.compare(message, latest) > 0) {
+                latest = message;
+            }
+            if (peer.equals(message.getSender()) && message.getTimestamp() > lastReadTimestamp) {
+                unreadCount++;
+            }
+        }
+        String conversationId = ConversationIds.conversationId(owner, peer);
+        if (latest == null) {
+            return new ConversationSummary(peer, "", 0, 0, conversationId);
+        }
+        return new ConversationSummary(peer, preview(latest.getMessage()), latest.getTimestamp(), unreadCount,
+                conversationId);
+    }
+}
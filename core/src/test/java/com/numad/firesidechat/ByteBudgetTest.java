@@ -0,0 +1,53 @@
+package com.numad.firesidechat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ByteBudgetTest {
+    private final ByteBudget budget = new ByteBudget(1000, 60_000);
+
+    @Test
+    public void budget_runsOutOnceSpent() {
+        assertTrue(budget.hasBudget(0));
+        budget.charge(600);
+        assertTrue(budget.hasBudget(1000));
+        budget.charge(400);
+
+        assertFalse(budget.hasBudget(2000));
+        assertEquals(1000, budget.getBytesSpent());
+    }
+
+    @Test
+    public void newWindow_startsOverOnceTheLastOneIsOver() {
+        budget.hasBudget(5000);
+        budget.charge(1500);
+        assertFalse(budget.hasBudget(64_999));
+
+        assertTrue(budget.hasBudget(65_000));
+        assertEquals(0, budget.getBytesSpent());
+    }
+
+    @Test
+    public void settle_replacesTheEstimateWithWhatWasRead() {
+        budget.hasBudget(0);
+        budget.charge(500);
+
+        budget.settle(500, 1200);
+
+        assertEquals(1200, budget.getBytesSpent());
+        assertFalse(budget.hasBudget(1000));
+    }
+
+    @Test
+    public void settle_neverGoesBelowNothing() {
+        budget.hasBudget(0);
+        budget.charge(500);
+        // A new window started while the read was in flight
+        budget.hasBudget(60_000);
+
+        budget.settle(500, 100);
+
+        assertEquals(0, budget.getBytesSpent());
+    }
+}
@@ -0,0 +1,218 @@
+package com.numad.firesidechat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class ChatArchiveTest {
+    private static final String ALICE = "Alice";
+    private static final String BOB = "Bob";
+    // More than two pages, so paging is covered
+    private static final int MESSAGE_COUNT = ChatArchive.PAGE_SIZE * 2 + 50;
+
+    private ExecutorService ioExecutor;
+    private File spoolDir;
+
+    @Before
+    public void setUp() throws IOException {
+        ioExecutor = Executors.newSingleThreadExecutor();
+        spoolDir = Files.createTempDirectory("chat-archive-test").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        ioExecutor.shutdownNow();
+        // Every import deletes its spool file, whether it worked or not
+        String[] left = spoolDir.list();
+        spoolDir.delete();
+        assertNotNull(left);
+        assertEquals(0, left.length);
+    }
+
+    @Test
+    public void exportThenImport_restoresEveryMessage() throws Exception {
+        InMemoryChatRepository source = new InMemoryChatRepository(Runnable::run);
+        List<Message> messages = fillChat(source);
+
+        byte[] archive = export(source);
+        InMemoryChatRepository target = new InMemoryChatRepository(Runnable::run);
+        int imported = importInto(target, archive);
+
+        assertEquals(MESSAGE_COUNT, imported);
+        assertEquals(messages, loadAll(target));
+    }
+
+    @Test
+    public void emptyChats_roundTrip() throws Exception {
+        byte[] archive = export(new InMemoryChatRepository(Runnable::run));
+        InMemoryChatRepository target = new InMemoryChatRepository(Runnable::run);
+
+        assertEquals(0, importInto(target, archive));
+        assertTrue(loadAll(target).isEmpty());
+    }
+
+    @Test
+    public void truncatedArchives_areRejected() throws Exception {
+        InMemoryChatRepository source = new InMemoryChatRepository(Runnable::run);
+        fillChat(source);
+        byte[] archive = export(source);
+
+        byte[] truncated = Arrays.copyOf(archive, archive.length - 10);
+        InMemoryChatRepository target = new InMemoryChatRepository(Runnable::run);
+        try {
+            importInto(target, truncated);
+            fail("Expected the truncated archive to be rejected");
+        } catch (IOException expected) {
+            // The end of the archive is missing
+        }
+        // Not even the batches before the cut were written
+        assertTrue(loadAll(target).isEmpty());
+    }
+
+    @Test
+    public void messagesFromOtherUsers_areRejected() throws Exception {
+        byte[] archive = archiveOf(new Message("a", ALICE, "Hi", 1000), new Message("b", "Mallory", "Hi", 2000));
+        InMemoryChatRepository target = new InMemoryChatRepository(Runnable::run);
+        try {
+            importInto(target, archive);
+            fail("Expected the archive to be rejected");
+        } catch (IOException expected) {
+            assertEquals("Chat archive holds a message from Mallory", expected.getMessage());
+        }
+        assertTrue(loadAll(target).isEmpty());
+    }
+
+    @Test
+    public void idsThatAreNotKeys_areRejected() throws Exception {
+        for (String id : new String[]{"", "a/b", "a.b", "a#b", "a$b", "a[b", "a]b"}) {
+            byte[] archive = archiveOf(new Message("a", ALICE, "Hi", 1000), new Message(id, BOB, "Hi", 2000));
+            InMemoryChatRepository target = new InMemoryChatRepository(Runnable::run);
+            try {
+                importInto(target, archive);
+                fail("Expected the ID \"" + id + "\" to be rejected");
+            } catch (IOException expected) {
+                assertEquals("Invalid message ID in chat archive: " + id, expected.getMessage());
+            }
+            assertTrue(loadAll(target).isEmpty());
+        }
+    }
+
+    @Test
+    public void filesThatAreNotArchives_areRejected() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(0x12345678);
+        data.writeInt(ChatArchive.VERSION);
+        data.close();
+
+        try {
+            importInto(new InMemoryChatRepository(Runnable::run), bytes.toByteArray());
+            fail("Expected the file to be rejected");
+        } catch (IOException expected) {
+            assertEquals("Not a chat archive", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void oversizedTextLengths_areRejected() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(ChatArchive.MAGIC);
+        data.writeInt(ChatArchive.VERSION);
+        data.writeByte(1);
+        data.writeUTF("a");
+        data.writeUTF(ALICE);
+        // A damaged length, far more than the file holds
+        data.writeInt(Integer.MAX_VALUE);
+        data.close();
+
+        InMemoryChatRepository target = new InMemoryChatRepository(Runnable::run);
+        try {
+            importInto(target, bytes.toByteArray());
+            fail("Expected the archive to be rejected");
+        } catch (IOException expected) {
+            assertEquals("Invalid message length in chat archive: " + Integer.MAX_VALUE, expected.getMessage());
+        }
+        assertTrue(loadAll(target).isEmpty());
+    }
+
+    /**
+     * This is a helper function. It sends {@link #MESSAGE_COUNT} messages between Alice and Bob,
+     * one of them a tombstone, and returns them oldest first.
+     */
+    private static List<Message> fillChat(InMemoryChatRepository repository) throws Exception {
+        List<OutboxEntry> entries = new ArrayList<>();
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            String sender = i % 2 == 0 ? ALICE : BOB;
+            Message message = new Message(repository.newMessageId(ALICE, BOB), sender, "Message " + i + " ☕", 1000L * i);
+            entries.add(new OutboxEntry(sender.equals(ALICE) ? BOB : ALICE, message));
+            messages.add(message);
+        }
+        ChatRepositoryContractTest.awaitDone(callback -> repository.sendMessages(entries, callback));
+        Message deleted = messages.get(7);
+        ChatRepositoryContractTest.awaitDone(callback -> repository.deleteMessage(ALICE, BOB, deleted, null, true, callback));
+        messages.set(7, new Message(deleted.getId(), deleted.getSender(), "", deleted.getTimestamp(), true));
+        return messages;
+    }
+
+    /**
+     * This is a helper function. It writes an archive holding @param messages by hand, the way
+     * {@link ChatArchive} lays it out, so it can hold messages an export never would.
+     */
+    private static byte[] archiveOf(Message... messages) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(ChatArchive.MAGIC);
+        data.writeInt(ChatArchive.VERSION);
+        for (Message message : messages) {
+            data.writeByte(1);
+            data.writeUTF(message.getId());
+            data.writeUTF(message.getSender());
+            byte[] text = message.getMessage().getBytes(StandardCharsets.UTF_8);
+            data.writeInt(text.length);
+            data.write(text);
+            data.writeLong(message.getTimestamp());
+            data.writeBoolean(message.getDeleted());
+        }
+        data.writeByte(0);
+        data.writeInt(messages.length);
+        data.close();
+        return bytes.toByteArray();
+    }
+
+    private byte[] export(ChatRepository repository) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Integer count = ChatRepositoryContractTest.await(callback ->
+                ChatArchive.export(repository, ALICE, BOB, out, ioExecutor, callback));
+        assertNotNull(count);
+        return out.toByteArray();
+    }
+
+    private int importInto(ChatRepository repository, byte[] archive) throws Exception {
+        Integer count = ChatRepositoryContractTest.await(callback ->
+                ChatArchive.importInto(repository, ALICE, BOB, new ByteArrayInputStream(archive), spoolDir,
+                        ioExecutor, callback));
+        return count;
+    }
+
+    private static List<Message> loadAll(ChatRepository repository) throws Exception {
+        return ChatRepositoryContractTest.await(callback ->
+                repository.loadLatestMessages(ALICE, BOB, MESSAGE_COUNT * 2, callback));
+    }
+}
@@ -0,0 +1,268 @@
+package com.numad.firesidechat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
+
+/**
+ * The behaviour every {@link ChatRepository} has to share. Each implementation that can run on the
+ * JVM gets a subclass that hands out a fresh, empty repository.
+ */
+public abstract class ChatRepositoryContractTest {
+    protected static final long TIMEOUT_MS = 5000;
+    protected static final String ALICE = "Alice";
+    protected static final String BOB = "Bob";
+
+    protected ChatRepository repository;
+
+    protected abstract ChatRepository createRepository();
+
+    @Before
+    public void setUp() {
+        repository = createRepository();
+    }
+
+    @Test
+    public void sentMessages_areLoadedOldestFirst() throws Exception {
+        Message first = message(ALICE, "Hi", 1000);
+        Message second = message(BOB, "Hello", 2000);
+        send(BOB, first);
+        send(ALICE, second);
+
+        assertEquals(Arrays.asList(first, second), loadLatest(10));
+        assertEquals(Collections.singletonList(second), loadLatest(1));
+    }
+
+    @Test
+    public void loadMessagesBefore_pagesBackwards() throws Exception {
+        Message first = message(ALICE, "1", 1000);
+        Message second = message(ALICE, "2", 2000);
+        Message third = message(ALICE, "3", 3000);
+        send(BOB, first, second, third);
+
+        List<Message> page = await(callback -> repository.loadMessagesBefore(ALICE, BOB, third, 10, callback));
+        assertEquals(Arrays.asList(first, second), page);
+        page = await(callback -> repository.loadMessagesBefore(ALICE, BOB, first, 10, callback));
+        assertTrue(page.isEmpty());
+    }
+
+    @Test
+    public void sending_countsUnreadForTheRecipientOnly() throws Exception {
+        send(BOB, message(ALICE, "1", 1000), message(ALICE, "2", 2000));
+
+        assertEquals(2, awaitSummary(BOB, ALICE, summary -> summary.getUnreadCount() == 2).getUnreadCount());
+        ConversationSummary aliceSummary = awaitSummary(ALICE, BOB, summary -> summary.getLastTimestamp() == 2000);
+        assertEquals(0, aliceSummary.getUnreadCount());
+        assertEquals("2", aliceSummary.getLastMessage());
+    }
+
+    @Test
+    public void resendingABatch_countsItOnce() throws Exception {
+        Message message = message(ALICE, "Hi", 1000);
+        send(BOB, message);
+        send(BOB, message);
+
+        assertEquals(Collections.singletonList(message), loadLatest(10));
+        assertEquals(1, awaitSummary(BOB, ALICE, summary -> summary.getLastTimestamp() == 1000).getUnreadCount());
+    }
+
+    @Test
+    public void markRead_clearsTheUnreadCount() throws Exception {
+        send(BOB, message(ALICE, "Hi", 1000));
+        awaitSummary(BOB, ALICE, summary -> summary.getUnreadCount() == 1);
+
+        repository.markRead(BOB, ALICE);
+
+        assertEquals(0, awaitSummary(BOB, ALICE, summary -> summary.getUnreadCount() == 0).getUnreadCount());
+    }
+
+    @Test
+    public void deletingAnUnreadMessage_stopsCountingIt() throws Exception {
+        Message first = message(ALICE, "1", 1000);
+        Message second = message(ALICE, "2", 2000);
+        send(BOB, first, second);
+        awaitSummary(BOB, ALICE, summary -> summary.getUnreadCount() == 2);
+
+        delete(second, first, false);
+
+        ConversationSummary summary = awaitSummary(BOB, ALICE, candidate -> candidate.getUnreadCount() == 1);
+        assertEquals("1", summary.getLastMessage());
+        assertEquals(Collections.singletonList(first), loadLatest(10));
+    }
+
+    @Test
+    public void deletingAReadMessage_leavesTheUnreadCountAlone() throws Exception {
+        Message read = message(ALICE, "1", 1000);
+        send(BOB, read);
+        repository.markRead(BOB, ALICE);
+        Message unread = message(ALICE, "2", 2000);
+        send(BOB, unread);
+        awaitSummary(BOB, ALICE, summary -> summary.getUnreadCount() == 1);
+
+        delete(read, unread, false);
+        // A later message shows the deletion has been applied
+        send(ALICE, message(BOB, "3", 3000));
+
+        ConversationSummary summary = awaitSummary(BOB, ALICE, candidate -> candidate.getLastTimestamp() == 3000);
+        assertEquals(1, summary.getUnreadCount());
+    }
+
+    @Test
+    public void tombstoneDeletes_keepTheMessageWithoutItsText() throws Exception {
+        Message message = message(ALICE, "Secret", 1000);
+        send(BOB, message);
+
+        delete(message, null, true);
+
+        List<Message> messages = loadLatest(10);
+        assertEquals(1, messages.size());
+        assertTrue(messages.get(0).getDeleted());
+        assertEquals("", messages.get(0).getMessage());
+        assertEquals(message.getId(), messages.get(0).getId());
+    }
+
+    @Test
+    public void subscribeToMessages_deliversFromTheGivenMessageOnwards() throws Exception {
+        Message first = message(ALICE, "1", 1000);
+        Message second = message(ALICE, "2", 2000);
+        send(BOB, first, second);
+
+        BlockingQueue<Message> changed = new LinkedBlockingQueue<>();
+        ChatRepository.Subscription subscription = repository.subscribeToMessages(ALICE, BOB, second,
+                new ChatRepository.MessageListener() {
+                    @Override
+                    public void onMessageChanged(Message message) {
+                        changed.add(message);
+                    }
+
+                    @Override
+                    public void onMessageRemoved(String id) {
+                    }
+
+                    @Override
+                    public void onError(Exception error) {
+                        fail(error.toString());
+                    }
+                });
+        assertEquals(second, changed.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        Message third = message(BOB, "3", 3000);
+        send(ALICE, third);
+        assertEquals(third, changed.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        subscription.cancel();
+    }
+
+    @Test
+    public void findUsernames_matchesPrefixesIgnoringCase() throws Exception {
+        saveUser(ALICE);
+        saveUser("alicia");
+        saveUser(BOB);
+
+        List<String> names = await(callback -> repository.findUsernames("ALI", 10, callback));
+        assertEquals(Arrays.asList(ALICE, "alicia"), names);
+        String match = await(callback -> repository.resolveUsername("alice", callback));
+        assertEquals(ALICE, match);
+        String missing = await(callback -> repository.resolveUsername("Carol", callback));
+        assertNull(missing);
+    }
+
+    protected Message message(String sender, String text, long timestamp) {
+        return new Message(repository.newMessageId(ALICE, BOB), sender, text, timestamp);
+    }
+
+    /**
+     * This is a helper function. It sends @param messages to @param recipient in one batch and waits
+     * until the repository has them.
+     */
+    protected void send(String recipient, Message... messages) throws Exception {
+        OutboxEntry[] entries = new OutboxEntry[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            entries[i] = new OutboxEntry(recipient, messages[i]);
+        }
+        awaitDone(callback -> repository.sendMessages(Arrays.asList(entries), callback));
+    }
+
+    protected void delete(Message message, Message newLatest, boolean tombstone) throws Exception {
+        awaitDone(callback -> repository.deleteMessage(ALICE, BOB, message, newLatest, tombstone, callback));
+    }
+
+    protected List<Message> loadLatest(int limit) throws Exception {
+        return await(callback -> repository.loadLatestMessages(ALICE, BOB, limit, callback));
+    }
+
+    private void saveUser(String name) throws Exception {
+        awaitDone(callback -> repository.saveUser(name, new User(name + "@example.com", ""), callback));
+    }
+
+    /**
+     * This is a helper function. It waits for the summary @param owner keeps for @param peer to match
+     * @param condition and returns it.
+     */
+    protected ConversationSummary awaitSummary(String owner, String peer, Predicate<ConversationSummary> condition)
+            throws InterruptedException {
+        BlockingQueue<HashMap<String, ConversationSummary>> updates = new LinkedBlockingQueue<>();
+        ChatRepository.Subscription subscription = repository.subscribeToSummaries(owner,
+                new ChatRepository.Listener<HashMap<String, ConversationSummary>>() {
+                    @Override
+                    public void onChanged(HashMap<String, ConversationSummary> summaries) {
+                        updates.add(summaries);
+                    }
+
+                    @Override
+                    public void onError(Exception error) {
+                        fail(error.toString());
+                    }
+                });
+        try {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (System.currentTimeMillis() < deadline) {
+                HashMap<String, ConversationSummary> summaries =
+                        updates.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                ConversationSummary summary = summaries == null ? null : summaries.get(peer);
+                if (summary != null && condition.test(summary)) {
+                    return summary;
+                }
+            }
+            throw new AssertionError("No matching summary of " + owner + " for " + peer);
+        } finally {
+            subscription.cancel();
+        }
+    }
+
+    protected static void awaitDone(Consumer<ChatRepository.Callback<Void>> operation) throws Exception {
+        await(operation);
+    }
+
+    /**
+     * This is a helper function. It runs @param operation and waits for the result it hands to its
+     * callback, failing the test if it hands over an error instead.
+     */
+    protected static <T> T await(Consumer<ChatRepository.Callback<T>> operation) throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<T> result = new AtomicReference<>();
+        AtomicReference<Exception> error = new AtomicReference<>();
+        operation.accept((value, exception) -> {
+            result.set(value);
+            error.set(exception);
+            done.countDown();
+        });
+        assertTrue("Timed out", done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        if (error.get() != null) {
+            throw error.get();
+        }
+        return result.get();
+    }
+}
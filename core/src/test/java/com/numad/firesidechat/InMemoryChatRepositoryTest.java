@@ -0,0 +1,98 @@
+package com.numad.firesidechat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class InMemoryChatRepositoryTest extends ChatRepositoryContractTest {
+
+    @Override
+    protected ChatRepository createRepository() {
+        return new InMemoryChatRepository(Runnable::run);
+    }
+
+    private InMemoryChatRepository inMemory() {
+        return (InMemoryChatRepository) repository;
+    }
+
+    @Test
+    public void operationsWhileDisconnected_waitForTheConnection() throws Exception {
+        inMemory().setConnected(false);
+        Message message = message(ALICE, "Hi", 1000);
+        CountDownLatch sent = new CountDownLatch(1);
+        repository.sendMessages(Collections.singletonList(new OutboxEntry(BOB, message)), (result, error) -> {
+            assertNull(error);
+            sent.countDown();
+        });
+
+        assertFalse(sent.await(200, TimeUnit.MILLISECONDS));
+
+        inMemory().setConnected(true);
+        assertTrue(sent.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(Collections.singletonList(message), loadLatest(10));
+    }
+
+    @Test
+    public void operationsWhileDisconnected_runInOrder() throws Exception {
+        inMemory().setConnected(false);
+        Message message = message(ALICE, "Hi", 1000);
+        repository.sendMessages(Collections.singletonList(new OutboxEntry(BOB, message)), (result, error) -> {
+        });
+        AtomicReference<Integer> loaded = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+        repository.loadLatestMessages(ALICE, BOB, 10, (messages, error) -> {
+            loaded.set(messages.size());
+            done.countDown();
+        });
+
+        inMemory().setConnected(true);
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(Integer.valueOf(1), loaded.get());
+    }
+
+    @Test
+    public void connectionSubscriptions_seeEveryChange() throws Exception {
+        BlockingQueue<Boolean> states = new LinkedBlockingQueue<>();
+        ChatRepository.Subscription subscription = repository.subscribeToConnection(new ChatRepository.Listener<Boolean>() {
+            @Override
+            public void onChanged(Boolean connected) {
+                states.add(connected);
+            }
+
+            @Override
+            public void onError(Exception error) {
+                fail(error.toString());
+            }
+        });
+
+        inMemory().setConnected(false);
+        inMemory().setConnected(true);
+
+        assertEquals(Boolean.TRUE, states.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(Boolean.FALSE, states.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(Boolean.TRUE, states.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        subscription.cancel();
+    }
+
+    @Test
+    public void injectedFailures_areReportedAsIOExceptions() throws Exception {
+        inMemory().setFailureRate(1);
+        try {
+            loadLatest(10);
+            fail("Expected a failure");
+        } catch (IOException expected) {
+            // The operation failed as configured
+        }
+
+        inMemory().setFailureRate(0);
+        assertTrue(loadLatest(10).isEmpty());
+    }
+}
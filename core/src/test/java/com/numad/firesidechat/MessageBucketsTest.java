@@ -0,0 +1,33 @@
+package com.numad.firesidechat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MessageBucketsTest {
+
+    @Test
+    public void bucketOf_splitsAtMidnightUtc() {
+        long midnight = 19_000 * MessageBuckets.BUCKET_MILLIS;
+
+        assertEquals("2022-01-07", MessageBuckets.bucketOf(midnight - 1));
+        assertEquals("2022-01-08", MessageBuckets.bucketOf(midnight));
+        assertEquals("2022-01-08", MessageBuckets.bucketOf(midnight + MessageBuckets.BUCKET_MILLIS - 1));
+    }
+
+    @Test
+    public void bucketOf_handlesTimestampsBeforeTheEpoch() {
+        assertEquals("1970-01-01", MessageBuckets.bucketOf(0));
+        assertEquals("1969-12-31", MessageBuckets.bucketOf(-1));
+        assertEquals("1969-12-31", MessageBuckets.bucketOf(-MessageBuckets.BUCKET_MILLIS));
+        assertEquals("1969-12-30", MessageBuckets.bucketOf(-MessageBuckets.BUCKET_MILLIS - 1));
+    }
+
+    @Test
+    public void bucketNames_sortLikeTheDays() {
+        String earlier = MessageBuckets.bucketOf(5 * MessageBuckets.BUCKET_MILLIS);
+        String later = MessageBuckets.bucketOf(40 * MessageBuckets.BUCKET_MILLIS);
+
+        assertTrue(earlier.compareTo(later) < 0);
+    }
+}
@@ -0,0 +1,44 @@
+package com.numad.firesidechat;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class MessageListDiffTest {
+    private static final Message FIRST = new Message("a", "Alice", "1", 1000);
+    private static final Message SECOND = new Message("b", "Bob", "2", 2000);
+    private static final Message THIRD = new Message("c", "Alice", "3", 3000);
+
+    @Test
+    public void equalLists_haveNoDifference() {
+        MessageListDiff diff = MessageListDiff.compute(Arrays.asList(FIRST, SECOND), Arrays.asList(FIRST, SECOND));
+
+        assertTrue(diff.isEmpty());
+    }
+
+    @Test
+    public void insertsRemovalsAndChanges_areAllFound() {
+        Message editedSecond = new Message("b", "Bob", "", 2000, true);
+
+        MessageListDiff diff = MessageListDiff.compute(Arrays.asList(FIRST, SECOND),
+                Arrays.asList(editedSecond, THIRD));
+
+        assertEquals(Collections.singletonList(THIRD), diff.inserted);
+        assertEquals(Collections.singletonList("a"), diff.removed);
+        assertEquals(Collections.singletonList(editedSecond), diff.changed);
+    }
+
+    @Test
+    public void emptyLists_insertOrRemoveEverything() {
+        MessageListDiff inserted = MessageListDiff.compute(Collections.emptyList(), Arrays.asList(FIRST, SECOND));
+        MessageListDiff removed = MessageListDiff.compute(Arrays.asList(FIRST, SECOND), Collections.emptyList());
+
+        assertEquals(Arrays.asList(FIRST, SECOND), inserted.inserted);
+        assertTrue(inserted.removed.isEmpty());
+        assertEquals(Arrays.asList("a", "b"), removed.removed);
+        assertTrue(removed.inserted.isEmpty());
+    }
+}
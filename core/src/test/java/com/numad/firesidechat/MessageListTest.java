@@ -0,0 +1,85 @@
+package com.numad.firesidechat;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class MessageListTest {
+    private static final Message FIRST = new Message("b", "Alice", "1", 1000);
+    private static final Message SECOND = new Message("a", "Bob", "2", 2000);
+    // Sent at the same time as SECOND, so it comes after it by ID
+    private static final Message THIRD = new Message("c", "Alice", "3", 2000);
+
+    @Test
+    public void messages_areOrderedByTimestampThenId() {
+        MessageList list = new MessageList(Arrays.asList(THIRD, FIRST, SECOND));
+
+        assertEquals(Arrays.asList(FIRST, SECOND, THIRD), list.toList());
+        assertEquals(FIRST, list.oldest());
+        assertEquals(THIRD, list.newest());
+        assertEquals(3, list.size());
+    }
+
+    @Test
+    public void put_replacesTheMessageWithTheSameId() {
+        MessageList list = new MessageList(Arrays.asList(FIRST, SECOND));
+        Message edited = new Message("b", "Alice", "edited", 3000);
+
+        assertEquals(FIRST, list.put(edited));
+
+        assertEquals(Arrays.asList(SECOND, edited), list.toList());
+        assertEquals(edited, list.get("b"));
+        assertEquals(2, list.size());
+    }
+
+    @Test
+    public void remove_dropsTheMessageById() {
+        MessageList list = new MessageList(Arrays.asList(FIRST, SECOND));
+
+        assertEquals(SECOND, list.remove("a"));
+        assertNull(list.remove("a"));
+
+        assertFalse(list.contains("a"));
+        assertEquals(Collections.singletonList(FIRST), list.toList());
+    }
+
+    @Test
+    public void newestExcept_skipsTheGivenMessage() {
+        MessageList list = new MessageList(Arrays.asList(FIRST, SECOND, THIRD));
+
+        assertEquals(SECOND, list.newestExcept("c"));
+        assertEquals(THIRD, list.newestExcept("b"));
+        assertNull(new MessageList(Collections.singletonList(FIRST)).newestExcept("b"));
+    }
+
+    @Test
+    public void before_returnsTheMessagesRightBeforeOldestFirst() {
+        MessageList list = new MessageList(Arrays.asList(FIRST, SECOND, THIRD));
+
+        assertEquals(Arrays.asList(FIRST, SECOND), list.before(THIRD, 10));
+        assertEquals(Collections.singletonList(SECOND), list.before(THIRD, 1));
+        assertTrue(list.before(FIRST, 10).isEmpty());
+        // The message to page from does not have to be in the list
+        assertEquals(Arrays.asList(FIRST, SECOND, THIRD), list.before(new Message("z", "Bob", "", 5000), 10));
+    }
+
+    @Test
+    public void latest_returnsTheNewestMessagesOldestFirst() {
+        MessageList list = new MessageList(Arrays.asList(FIRST, SECOND, THIRD));
+
+        assertEquals(Arrays.asList(SECOND, THIRD), list.latest(2));
+        assertEquals(Arrays.asList(FIRST, SECOND, THIRD), list.latest(10));
+        assertTrue(new MessageList().latest(10).isEmpty());
+    }
+
+    @Test
+    public void from_includesTheGivenMessage() {
+        MessageList list = new MessageList(Arrays.asList(FIRST, SECOND, THIRD));
+
+        assertEquals(Arrays.asList(SECOND, THIRD), list.from(SECOND));
+        assertEquals(Arrays.asList(FIRST, SECOND, THIRD), list.from(null));
+    }
+}
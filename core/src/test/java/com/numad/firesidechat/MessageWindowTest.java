@@ -0,0 +1,192 @@
+package com.numad.firesidechat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageWindowTest {
+    private static final int PAGE_SIZE = 2;
+
+    private final MessageWindow window = new MessageWindow(PAGE_SIZE, 6, 4);
+
+    @Test
+    public void latestPage_dropsDeletedMessagesAndFindsTheStart() {
+        List<Message> kept = window.setLatestPage(Collections.singletonList(deleted(1)));
+
+        assertTrue(kept.isEmpty());
+        assertTrue(window.hasReachedStart());
+        assertNull(window.nextOlderPageBefore());
+    }
+
+    @Test
+    public void liveMessagesAboveTheLimit_becomeAnOlderPage() {
+        window.setLiveFrom(null);
+        for (int i = 1; i <= 4; i++) {
+            assertFalse(window.putLive(message(i)));
+        }
+
+        assertTrue(window.putLive(message(5)));
+
+        assertEquals(message(4), window.getLiveFrom());
+        assertTrue(window.containsLive("m4"));
+        assertFalse(window.containsLive("m3"));
+        assertEquals(messages(1, 5), contents());
+        assertEquals(message(1), window.getCursor());
+    }
+
+    @Test
+    public void pagesFarBelowTheViewport_areReleasedLeavingAGap() {
+        openWithOlderPages();
+
+        assertTrue(window.releasePagesBelow(0));
+
+        assertEquals(message(6), window.getGapAfter());
+        assertEquals(Arrays.asList(message(3), message(4), message(5), message(6), message(9), message(10)),
+                contents());
+        assertTrue(window.isNearGap(3, 5, 1));
+        assertFalse(window.isNearGap(0, 1, 1));
+    }
+
+    @Test
+    public void pagesNearTheViewport_areKept() {
+        openWithOlderPages();
+
+        assertFalse(window.releasePagesBelow(5));
+
+        assertNull(window.getGapAfter());
+        assertEquals(8, window.size());
+    }
+
+    @Test
+    public void gap_isFilledFromTheDeviceUntilItReachesTheLiveMessages() {
+        openWithOlderPages();
+        window.releasePagesBelow(0);
+
+        Message gapAfter = window.getGapAfter();
+        assertTrue(window.addNewerPage(gapAfter, Arrays.asList(message(7), message(8))));
+        // A page for a gap that has moved since is ignored
+        assertFalse(window.addNewerPage(gapAfter, Arrays.asList(message(7), message(8))));
+        assertEquals(message(8), window.getGapAfter());
+        assertTrue(window.addNewerPage(window.getGapAfter(), Arrays.asList(message(9), message(10))));
+
+        assertNull(window.getGapAfter());
+        assertEquals(messages(3, 10), contents());
+    }
+
+    @Test
+    public void liveMessagesTrimmedBehindAGap_areDropped() {
+        openWithOlderPages();
+        window.releasePagesBelow(0);
+
+        window.putLive(message(11));
+        window.putLive(message(12));
+        assertTrue(window.putLive(message(13)));
+
+        assertEquals(message(12), window.getLiveFrom());
+        assertEquals(Arrays.asList(message(3), message(4), message(5), message(6), message(12), message(13)),
+                contents());
+    }
+
+    @Test
+    public void pagesFarAboveTheViewport_areReleased() {
+        openWithOlderPages();
+
+        assertTrue(window.releasePagesAbove(4));
+
+        assertEquals(messages(5, 10), contents());
+        assertEquals(message(5), window.nextOlderPageBefore());
+        assertFalse(window.releasePagesAbove(1));
+    }
+
+    @Test
+    public void releasedPagesAbove_areReadBackFromTheDevice() {
+        openWithOlderPages();
+        window.releasePagesAbove(4);
+
+        assertTrue(window.isStoredBefore(message(5)));
+        // Only what we held since the chat was opened is trusted
+        assertTrue(window.addStoredOlderPage(Arrays.asList(message(1), message(2), message(3), message(4))));
+
+        assertEquals(messages(3, 10), contents());
+        assertEquals(message(3), window.getCursor());
+        assertFalse(window.isStoredBefore(message(3)));
+        assertFalse(window.addStoredOlderPage(Arrays.asList(message(1), message(2))));
+    }
+
+    @Test
+    public void fetchedPageOfDeletedMessages_movesTheCursorOn() {
+        window.setLiveFrom(message(5));
+        window.putLive(message(5));
+
+        assertTrue(window.addFetchedOlderPage(Arrays.asList(deleted(3), deleted(4))).isEmpty());
+        assertEquals(deleted(3), window.nextOlderPageBefore());
+
+        assertEquals(Collections.singletonList(message(2)),
+                window.addFetchedOlderPage(Collections.singletonList(message(2))));
+        assertTrue(window.hasReachedStart());
+        assertNull(window.nextOlderPageBefore());
+    }
+
+    @Test
+    public void removedMessages_leaveTheWindow() {
+        openWithOlderPages();
+
+        assertTrue(window.removeLive("m10"));
+        assertFalse(window.removeLive("m3"));
+        assertTrue(window.removeOlder("m3"));
+        assertFalse(window.removeOlder("m3"));
+
+        assertEquals(messages(4, 9), contents());
+    }
+
+    @Test
+    public void latestMessageExcept_looksIntoOlderPages() {
+        window.setLiveFrom(message(5));
+        window.putLive(message(5));
+        window.addFetchedOlderPage(Arrays.asList(message(3), message(4)));
+
+        assertEquals(message(4), window.latestMessageExcept("m5"));
+        assertEquals(message(5), window.latestMessageExcept("m4"));
+    }
+
+    /**
+     * This is a helper function. It opens a window with messages 9 and 10 live and three older pages
+     * of messages 3 to 8 fetched above them.
+     */
+    private void openWithOlderPages() {
+        window.setLatestPage(Arrays.asList(message(9), message(10)));
+        window.setLiveFrom(message(9));
+        window.putLive(message(9));
+        window.putLive(message(10));
+        window.addFetchedOlderPage(Arrays.asList(message(7), message(8)));
+        window.addFetchedOlderPage(Arrays.asList(message(5), message(6)));
+        window.addFetchedOlderPage(Arrays.asList(message(3), message(4)));
+    }
+
+    private List<Message> contents() {
+        List<Message> messages = new ArrayList<>();
+        window.addTo(messages);
+        return messages;
+    }
+
+    private static List<Message> messages(int first, int last) {
+        List<Message> messages = new ArrayList<>();
+        for (int i = first; i <= last; i++) {
+            messages.add(message(i));
+        }
+        return messages;
+    }
+
+    private static Message message(int i) {
+        return new Message("m" + i, "Alice", String.valueOf(i), i * 1000L);
+    }
+
+    private static Message deleted(int i) {
+        return new Message("m" + i, "Alice", "", i * 1000L, true);
+    }
+}
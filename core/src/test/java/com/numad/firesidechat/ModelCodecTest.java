@@ -0,0 +1,82 @@
+package com.numad.firesidechat;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ModelCodecTest {
+
+    @Test
+    public void messages_roundTrip() {
+        Message message = new Message("m1", "Alice", "Hi", 1234, true);
+
+        assertEquals(message, ModelCodec.decodeMessage("m1", ModelCodec.encodeMessage(message)));
+    }
+
+    @Test
+    public void messagesWithoutAnId_takeTheirKey() {
+        Map<String, Object> fields = ModelCodec.encodeMessage(new Message("", "Alice", "Hi", 1234));
+        fields.remove(ModelCodec.ID_FIELD);
+
+        assertEquals("key", ModelCodec.decodeMessage("key", fields).getId());
+    }
+
+    @Test
+    public void missingFields_getTheDefaults() {
+        Message message = ModelCodec.decodeMessage("m1", new HashMap<>());
+
+        assertEquals(new Message("m1", "", "", 0, false), message);
+        assertEquals(new ConversationSummary("", "", 0, 0, ""), ModelCodec.decodeSummary(new HashMap<>()));
+        assertEquals(new NotificationTracker(true, 0), ModelCodec.decodeNotificationTracker(new HashMap<>()));
+    }
+
+    @Test
+    public void valuesThatAreNotMaps_decodeToNull() {
+        assertNull(ModelCodec.decodeMessage("m1", "text"));
+        assertNull(ModelCodec.decodeSummary(42L));
+        assertNull(ModelCodec.decodeUser(null));
+        assertTrue(ModelCodec.decodeMessages("text").isEmpty());
+    }
+
+    @Test
+    public void summaries_roundTrip() {
+        ConversationSummary summary = new ConversationSummary("Bob", "Hi", 1234, 3, "5_Alice_Bob");
+
+        assertEquals(summary, ModelCodec.decodeSummary(ModelCodec.encodeSummary(summary)));
+    }
+
+    @Test
+    public void unreadMessages_areCountedWithTheOldUnreadCount() {
+        Map<String, Object> fields = ModelCodec.encodeSummary(new ConversationSummary("Bob", "Hi", 1234, 2, "5_Alice_Bob"));
+        Map<String, Object> unread = new HashMap<>();
+        unread.put("m1", true);
+        unread.put("m2", true);
+        fields.put(ModelCodec.UNREAD_MESSAGES_FIELD, unread);
+
+        assertEquals(4, ModelCodec.decodeSummary(fields).getUnreadCount());
+    }
+
+    @Test
+    public void usersAndHistories_roundTrip() {
+        User user = new User("alice@example.com", "token");
+        HashMap<String, Message> messages = new HashMap<>();
+        messages.put("m1", new Message("m1", "Alice", "Hi", 1234));
+        MessageHistoryObject history = new MessageHistoryObject(new NotificationTracker(false, 1), messages);
+
+        assertEquals(user, ModelCodec.decodeUser(ModelCodec.encodeUser(user)));
+        assertEquals(history, ModelCodec.decodeMessageHistory(ModelCodec.encodeMessageHistory(history)));
+    }
+
+    @Test
+    public void summariesByPeer_skipValuesThatAreNotSummaries() {
+        Map<String, Object> summaries = new HashMap<>();
+        summaries.put("Bob", ModelCodec.encodeSummary(new ConversationSummary("Bob", "Hi", 1, 0, "5_Alice_Bob")));
+        summaries.put("Carol", "broken");
+
+        assertEquals(Collections.singleton("Bob"), ModelCodec.decodeSummaries(summaries).keySet());
+    }
+}
@@ -0,0 +1,61 @@
+package com.numad.firesidechat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OutboxBatchingTest {
+    private final OutboxBatching batching = new OutboxBatching(20, 1000, 8000);
+
+    @Test
+    public void refusedBatch_isSentOneAtATimeThenInFullBatchesAgain() {
+        assertTrue(batching.onRejected(3));
+        assertEquals(1, batching.getBatchLimit());
+
+        batching.onSent(1);
+        // The second message is refused on its own and given up on
+        assertFalse(batching.onRejected(1));
+        assertEquals(1, batching.getBatchLimit());
+
+        batching.onSent(1);
+        assertEquals(20, batching.getBatchLimit());
+    }
+
+    @Test
+    public void refusedSingleMessage_isGivenUpOn() {
+        assertFalse(batching.onRejected(1));
+        assertEquals(20, batching.getBatchLimit());
+    }
+
+    @Test
+    public void reset_goesBackToFullBatches() {
+        batching.onRejected(5);
+
+        batching.reset();
+
+        assertEquals(20, batching.getBatchLimit());
+        batching.onSent(20);
+        assertEquals(20, batching.getBatchLimit());
+    }
+
+    @Test
+    public void failures_doubleTheDelayUpToTheMaximum() {
+        assertEquals(1000, batching.onFailed());
+        assertEquals(2000, batching.onFailed());
+        assertEquals(4000, batching.onFailed());
+        assertEquals(8000, batching.onFailed());
+        assertEquals(8000, batching.onFailed());
+    }
+
+    @Test
+    public void sentBatchOrConnection_resetsTheDelay() {
+        batching.onFailed();
+        batching.onFailed();
+        batching.onSent(1);
+        assertEquals(1000, batching.onFailed());
+
+        batching.onFailed();
+        batching.onConnected();
+        assertEquals(1000, batching.onFailed());
+    }
+}
@@ -0,0 +1,185 @@
+package com.numad.firesidechat;
+
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SubscriptionRegistryTest {
+    private static final String ALICE = "Alice";
+    private static final String BOB = "Bob";
+
+    private final CountingRepository repository = new CountingRepository();
+    private final SubscriptionRegistry registry = new SubscriptionRegistry(repository);
+
+    @Test
+    public void observersOfTheSameChat_shareOneSubscription() {
+        List<Message> first = new ArrayList<>();
+        List<Message> second = new ArrayList<>();
+
+        registry.observeMessages(ALICE, BOB, null, collect(first));
+        registry.observeMessages(BOB, ALICE, null, collect(second));
+        Message message = new Message("a", ALICE, "Hi", 1000);
+        repository.messageListener.onMessageChanged(message);
+
+        assertEquals(1, repository.opened);
+        assertEquals(1, first.size());
+        assertEquals(1, second.size());
+    }
+
+    @Test
+    public void differentStartingPoints_openTheirOwnSubscriptions() {
+        Message from = new Message("a", ALICE, "Hi", 1000);
+
+        registry.observeMessages(ALICE, BOB, null, collect(new ArrayList<>()));
+        registry.observeMessages(ALICE, BOB, from, collect(new ArrayList<>()));
+
+        assertEquals(2, repository.opened);
+    }
+
+    @Test
+    public void lateObservers_areCaughtUp() {
+        registry.observeMessages(ALICE, BOB, null, collect(new ArrayList<>()));
+        Message first = new Message("a", ALICE, "Hi", 1000);
+        Message second = new Message("b", BOB, "Hello", 2000);
+        repository.messageListener.onMessageChanged(first);
+        repository.messageListener.onMessageChanged(second);
+        repository.messageListener.onMessageRemoved("a");
+
+        List<Message> late = new ArrayList<>();
+        registry.observeMessages(ALICE, BOB, null, collect(late));
+
+        assertEquals(1, late.size());
+        assertEquals(second, late.get(0));
+    }
+
+    @Test
+    public void lateValueObservers_getTheLatestValue() {
+        registry.observeConnection(listener(new ArrayList<>()));
+        repository.connectionListener.onChanged(false);
+        repository.connectionListener.onChanged(true);
+
+        List<Boolean> late = new ArrayList<>();
+        registry.observeConnection(listener(late));
+
+        assertEquals(1, late.size());
+        assertTrue(late.get(0));
+    }
+
+    @Test
+    public void subscription_isCancelledWhenTheLastObserverLeaves() {
+        ChatRepository.Subscription first = registry.observeSummaries(ALICE, listener(new ArrayList<>()));
+        ChatRepository.Subscription second = registry.observeSummaries(ALICE, listener(new ArrayList<>()));
+
+        first.cancel();
+        assertEquals(0, repository.cancelled);
+
+        second.cancel();
+        assertEquals(1, repository.cancelled);
+
+        // The next observer opens a new one
+        registry.observeSummaries(ALICE, listener(new ArrayList<>()));
+        assertEquals(2, repository.opened);
+    }
+
+    @Test
+    public void cancellingTwice_doesNotDropAnotherObserver() {
+        List<Boolean> states = new ArrayList<>();
+        ChatRepository.Subscription first = registry.observeConnection(listener(new ArrayList<>()));
+        registry.observeConnection(listener(states));
+
+        first.cancel();
+        first.cancel();
+        repository.connectionListener.onChanged(true);
+
+        assertEquals(0, repository.cancelled);
+        assertEquals(1, states.size());
+    }
+
+    @Test
+    public void staleSubscription_doesNotCancelItsReplacement() {
+        ChatRepository.Subscription first = registry.observeConnection(listener(new ArrayList<>()));
+        first.cancel();
+        registry.observeConnection(listener(new ArrayList<>()));
+
+        first.cancel();
+
+        assertEquals(1, repository.cancelled);
+    }
+
+    private static ChatRepository.MessageListener collect(List<Message> messages) {
+        return new ChatRepository.MessageListener() {
+            @Override
+            public void onMessageChanged(Message message) {
+                messages.add(message);
+            }
+
+            @Override
+            public void onMessageRemoved(String id) {
+                messages.removeIf(message -> message.getId().equals(id));
+            }
+
+            @Override
+            public void onError(Exception error) {
+                fail(error.toString());
+            }
+        };
+    }
+
+    private static <T> ChatRepository.Listener<T> listener(List<T> values) {
+        return new ChatRepository.Listener<T>() {
+            @Override
+            public void onChanged(T value) {
+                values.add(value);
+            }
+
+            @Override
+            public void onError(Exception error) {
+                fail(error.toString());
+            }
+        };
+    }
+
+    /**
+     * A repository that only counts the subscriptions opened and cancelled, and keeps the latest
+     * listeners so the test can call them.
+     */
+    private static class CountingRepository extends InMemoryChatRepository {
+        int opened;
+        int cancelled;
+        ChatRepository.MessageListener messageListener;
+        ChatRepository.Listener<Boolean> connectionListener;
+
+        CountingRepository() {
+            super(Runnable::run);
+        }
+
+        @Override
+        public Subscription subscribeToSummaries(String owner, Listener<HashMap<String, ConversationSummary>> listener) {
+            return count();
+        }
+
+        @Override
+        public Subscription subscribeToMessages(String name1, String name2, @Nullable Message from,
+                                                MessageListener listener) {
+            messageListener = listener;
+            return count();
+        }
+
+        @Override
+        public Subscription subscribeToConnection(Listener<Boolean> listener) {
+            connectionListener = listener;
+            return count();
+        }
+
+        private Subscription count() {
+            opened++;
+            return () -> cancelled++;
+        }
+    }
+}
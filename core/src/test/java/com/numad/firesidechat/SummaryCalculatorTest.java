@@ -0,0 +1,44 @@
+package com.numad.firesidechat;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class SummaryCalculatorTest {
+
+    @Test
+    public void preview_cutsLongMessages() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < SummaryCalculator.PREVIEW_LENGTH + 20; i++) {
+            text.append('x');
+        }
+
+        assertEquals(SummaryCalculator.PREVIEW_LENGTH, SummaryCalculator.preview(text.toString()).length());
+        assertEquals("Hi", SummaryCalculator.preview("Hi"));
+    }
+
+    @Test
+    public void summarize_countsMessagesFromThePeerAfterTheLastRead() {
+        ConversationSummary summary = SummaryCalculator.summarize("Alice", "Bob", Arrays.asList(
+                new Message("a", "Bob", "read", 1000),
+                new Message("b", "Alice", "mine", 2000),
+                new Message("c", "Bob", "unread", 3000),
+                new Message("d", "Bob", "", 4000, true)), 1000);
+
+        assertEquals(1, summary.getUnreadCount());
+        assertEquals("unread", summary.getLastMessage());
+        assertEquals(3000, summary.getLastTimestamp());
+        assertEquals("Bob", summary.getPeer());
+        assertEquals(ConversationIds.conversationId("Alice", "Bob"), summary.getConversationId());
+    }
+
+    @Test
+    public void summarize_ofAnEmptyChatIsBlank() {
+        ConversationSummary summary = SummaryCalculator.summarize("Alice", "Bob", Collections.emptyList(), 0);
+
+        assertEquals(new ConversationSummary("Bob", "", 0, 0, ConversationIds.conversationId("Alice", "Bob")), summary);
+    }
+}